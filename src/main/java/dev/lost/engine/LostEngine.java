@@ -1,22 +1,34 @@
 package dev.lost.engine;
 
 import dev.lost.annotations.NotNull;
+import dev.lost.annotations.Nullable;
 import dev.lost.engine.assetsgenerators.LostEngineMappingGenerator;
+import dev.lost.engine.blocks.ClientBlockStates;
+import dev.lost.engine.blocks.ClientBlockTags;
 import dev.lost.engine.commands.GiveCommand;
 import dev.lost.engine.commands.LostEngineCommand;
 import dev.lost.engine.commands.SetBlockCommand;
 import dev.lost.engine.items.customitems.CustomItem;
-import dev.lost.engine.listeners.BytePacketListener;
+import dev.lost.engine.listeners.BlockStateEncoder;
+import dev.lost.engine.listeners.BlockUpdateCoalescer;
+import dev.lost.engine.listeners.ChunkPacketCache;
+import dev.lost.engine.listeners.ChunkRewriteExecutor;
+import dev.lost.engine.listeners.ClientItemCache;
+import dev.lost.engine.listeners.CustomBlockIndexListener;
 import dev.lost.engine.listeners.HttpPacketListener;
 import dev.lost.engine.listeners.PacketListener;
+import dev.lost.engine.utils.ReflectionUtils;
 import dev.lost.engine.webserver.WebServer;
 import dev.misieur.fast.FastFiles;
 import io.papermc.paper.plugin.lifecycle.event.types.LifecycleEvents;
+import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ReferenceOpenHashSet;
 import lombok.Getter;
 import lombok.Setter;
 import net.minecraft.core.registries.BuiltInRegistries;
 import net.minecraft.world.item.Item;
+import net.minecraft.world.item.ItemStack;
 import org.bukkit.Bukkit;
 import org.bukkit.plugin.Plugin;
 import org.bukkit.plugin.java.JavaPlugin;
@@ -47,6 +59,10 @@ public final class LostEngine extends JavaPlugin {
 
     @Getter private static List<CustomItem> customItems;
 
+    private static Object2ObjectOpenHashMap<String, Item> customItemsById = new Object2ObjectOpenHashMap<>();
+
+    private static ReferenceOpenHashSet<Item> itemsWithDynamicMaterial = new ReferenceOpenHashSet<>();
+
     @Override
     public void onLoad() {
         instance = this;
@@ -117,6 +133,16 @@ public final class LostEngine extends JavaPlugin {
             }
         }
         customItems = List.copyOf(customItemsList);
+        Object2ObjectOpenHashMap<String, Item> itemsById = new Object2ObjectOpenHashMap<>(customItems.size());
+        ReferenceOpenHashSet<Item> dynamicItems = new ReferenceOpenHashSet<>();
+        for (CustomItem customItem : customItems) {
+            itemsById.put(customItem.getId(), customItem.asItem());
+            if (!ItemStack.isSameItemSameComponents(customItem.getDynamicMaterial(), customItem.getDefaultMaterial())) {
+                dynamicItems.add(customItem.asItem());
+            }
+        }
+        customItemsById = itemsById;
+        itemsWithDynamicMaterial = dynamicItems;
 
         if (mappingGenerator != null) {
             try {
@@ -154,15 +180,27 @@ public final class LostEngine extends JavaPlugin {
             commands.registrar().register(LostEngineCommand.getCommand(), List.of("le"));
         });
 
+        ReflectionUtils.selfTest();
+        ClientBlockStates.build();
+        ClientBlockStates.selfTest();
+        ChunkPacketCache.loadConfig(getConfig());
+        ChunkRewriteExecutor.loadConfig(getConfig());
+        BlockStateEncoder.loadConfig(getConfig());
+        BlockUpdateCoalescer.loadConfig(getConfig());
+        ClientBlockTags.loadConfig(getConfig());
+        ClientItemCache.loadConfig(getConfig());
+        PacketListener.loadConfig(getConfig());
+
         // Listeners
         PacketListener.inject();
-        BytePacketListener.inject();
         HttpPacketListener.inject();
+        CustomBlockIndexListener.register(this);
     }
 
     @Override
     public void onDisable() {
         WebServer.stop();
+        ChunkRewriteExecutor.shutdown();
         cleanCache();
     }
 
@@ -170,6 +208,20 @@ public final class LostEngine extends JavaPlugin {
         return instance.getSLF4JLogger();
     }
 
+    /**
+     * @param id the id of a custom item, as returned by {@link CustomItem#getId()}
+     */
+    public static @Nullable Item getCustomItem(@NotNull String id) {
+        return customItemsById.get(id);
+    }
+
+    /**
+     * @return whether the item is a custom item sent with another material while it is held
+     */
+    public static boolean hasDynamicMaterial(@NotNull Item item) {
+        return itemsWithDynamicMaterial.contains(item);
+    }
+
     private void cleanCache() {
         Path cacheDir = getDataPath().resolve(".lost_engine/cache");
         if (Files.exists(cacheDir)) FastFiles.deleteFolder(cacheDir);
@@ -0,0 +1,55 @@
+package dev.lost.engine.blocks;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.shorts.Short2IntOpenHashMap;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import org.jetbrains.annotations.Contract;
+
+/**
+ * Custom block state ids of a single chunk, stored per section and keyed by the position inside the section.
+ * It is written from the server threads and read from the Netty threads, so every access is synchronized.
+ */
+public class ChunkCustomBlocks {
+
+    private final Int2ObjectOpenHashMap<Short2IntOpenHashMap> sections = new Int2ObjectOpenHashMap<>(4);
+
+    /**
+     * @return the block state id at this position or {@code 0} (air) if there is no custom block
+     */
+    public synchronized int get(long pos) {
+        Short2IntOpenHashMap section = sections.get(SectionPos.blockToSectionCoord(BlockPos.getY(pos)));
+        return section == null ? 0 : section.get(toSectionIndex(pos));
+    }
+
+    public synchronized void put(long pos, int blockStateId) {
+        sections.computeIfAbsent(SectionPos.blockToSectionCoord(BlockPos.getY(pos)), sectionY -> new Short2IntOpenHashMap())
+                .put(toSectionIndex(pos), blockStateId);
+    }
+
+    public synchronized void remove(long pos) {
+        int sectionY = SectionPos.blockToSectionCoord(BlockPos.getY(pos));
+        Short2IntOpenHashMap section = sections.get(sectionY);
+        if (section == null) return;
+        section.remove(toSectionIndex(pos));
+        if (section.isEmpty()) sections.remove(sectionY);
+    }
+
+    public synchronized boolean isEmpty() {
+        return sections.isEmpty();
+    }
+
+    public synchronized int size() {
+        int size = 0;
+        for (Int2ObjectMap.Entry<Short2IntOpenHashMap> entry : sections.int2ObjectEntrySet()) {
+            size += entry.getValue().size();
+        }
+        return size;
+    }
+
+    @Contract(pure = true)
+    private static short toSectionIndex(long pos) {
+        return (short) ((BlockPos.getY(pos) & 15) << 8 | (BlockPos.getZ(pos) & 15) << 4 | (BlockPos.getX(pos) & 15));
+    }
+}
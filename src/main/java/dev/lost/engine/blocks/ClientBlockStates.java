@@ -0,0 +1,159 @@
+package dev.lost.engine.blocks;
+
+import dev.lost.annotations.NotNull;
+import dev.lost.annotations.Nullable;
+import dev.lost.engine.LostEngine;
+import dev.lost.engine.blocks.customblocks.CustomBlock;
+import dev.lost.engine.utils.TimeUtils;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.block.state.properties.BlockStateProperties;
+
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Server to client block state id tables, built once from {@link #compute(BlockState, boolean)}
+ * so packet rewriting only has to do a single array load per block state.
+ */
+public class ClientBlockStates {
+
+    /**
+     * Returned by {@link #getClientId(int, boolean)} when the client already knows the block state
+     */
+    public static final int UNCHANGED = -1;
+
+    private static volatile int[] clientIds = new int[0];
+    private static volatile int[] notClickableClientIds = new int[0];
+
+    /**
+     * Builds (or rebuilds) both tables over {@link Block#BLOCK_STATE_REGISTRY}
+     */
+    public static void build() {
+        long startTime = System.nanoTime();
+        int size = Block.BLOCK_STATE_REGISTRY.size();
+        int[] ids = new int[size];
+        int[] notClickableIds = new int[size];
+        for (int id = 0; id < size; id++) {
+            BlockState blockState = Block.BLOCK_STATE_REGISTRY.byId(id);
+            ids[id] = blockState == null ? UNCHANGED : toClientId(id, compute(blockState, false));
+            notClickableIds[id] = blockState == null ? UNCHANGED : toClientId(id, compute(blockState, true));
+        }
+        clientIds = ids;
+        notClickableClientIds = notClickableIds;
+        LostEngine.logger().info("Built client block state table for {} block states ({})", size, TimeUtils.formatNanos(System.nanoTime() - startTime));
+    }
+
+    /**
+     * @return the block state id to send to the client or {@link #UNCHANGED}
+     */
+    public static int getClientId(int id, boolean replaceClickableBlocks) {
+        int[] table = replaceClickableBlocks ? notClickableClientIds : clientIds;
+        return id >= 0 && id < table.length ? table[id] : UNCHANGED;
+    }
+
+    /**
+     * Block events (block break particles and sounds) only use the block and not its state
+     *
+     * @return the block state id to send to the client in a block event or {@link #UNCHANGED}
+     */
+    public static int getBlockEventClientId(int id) {
+        return getClientId(Block.getId(Block.stateById(id).getBlock().defaultBlockState()), false);
+    }
+
+    /**
+     * Direct access to a table for code working on raw block state ids, it must not be modified
+     */
+    public static int[] getTable(boolean replaceClickableBlocks) {
+        return replaceClickableBlocks ? notClickableClientIds : clientIds;
+    }
+
+    /**
+     * @return the block state to send to the client or {@code null} if the client already knows this block state
+     */
+    public static @Nullable BlockState get(@NotNull BlockState blockState, boolean replaceClickableBlocks) {
+        int clientId = getClientId(Block.getId(blockState), replaceClickableBlocks);
+        return clientId == UNCHANGED ? null : Block.stateById(clientId);
+    }
+
+    /**
+     * Slow path used to build the tables, prefer {@link #get(BlockState, boolean)}
+     *
+     * @return the block state to send to the client or {@code null} if it doesn't need to be replaced
+     */
+    public static @Nullable BlockState compute(@NotNull BlockState blockState, boolean replaceClickableBlocks) {
+        Block block = blockState.getBlock();
+        if (block instanceof CustomBlock customBlock) {
+            // if replaceClickableBlocks is true, we try to replace it with the non-clickable block if it is not null
+            return replaceClickableBlocks ?
+                    Objects.requireNonNullElse(customBlock.getNotClickableBlockState(), customBlock.getClientBlockState()) :
+                    customBlock.getClientBlockState();
+        } else if (block == Blocks.BROWN_MUSHROOM_BLOCK || block == Blocks.RED_MUSHROOM_BLOCK || block == Blocks.MUSHROOM_STEM) {
+            return BlockStateProvider.getMushroomBlockState(blockState, 63);
+        } else if (block == Blocks.DROPPER || block == Blocks.DISPENSER) {
+            return blockState.setValue(BlockStateProperties.TRIGGERED, false);
+        } else if (block == Blocks.PALE_OAK_LEAVES) {
+            return BlockStateProvider.getLeavesBlockState(blockState, 13);
+        } else if (block == Blocks.TARGET) {
+            return BlockStateProvider.getTargetBlockState(blockState, 0);
+        }
+        return null;
+    }
+
+    /**
+     * Checks the tables against {@link #baseline(BlockState, boolean)} for every registered block state,
+     * only run on enable as it walks the whole registry twice
+     *
+     * @throws IllegalStateException on the first block state that doesn't match
+     */
+    public static void selfTest() {
+        for (int id = 0, size = Block.BLOCK_STATE_REGISTRY.size(); id < size; id++) {
+            BlockState blockState = Block.BLOCK_STATE_REGISTRY.byId(id);
+            if (blockState == null) continue;
+            for (boolean replaceClickableBlocks : new boolean[]{false, true}) {
+                BlockState expected = baseline(blockState, replaceClickableBlocks).orElse(null);
+                // The client already knows the block state if it is sent as is
+                int expectedId = expected == null || Block.getId(expected) == id ? UNCHANGED : Block.getId(expected);
+                int clientId = getClientId(id, replaceClickableBlocks);
+                BlockState actual = get(blockState, replaceClickableBlocks);
+                if (clientId != expectedId
+                        || (expectedId == UNCHANGED ? actual != null : actual != expected || Block.stateById(clientId) != expected)) {
+                    throw new IllegalStateException("Client block state table mismatch for " + blockState
+                            + (replaceClickableBlocks ? " (not clickable)" : "") + ": expected " + expected + " but got " + actual + " (" + clientId + ")");
+                }
+            }
+        }
+    }
+
+    /**
+     * The mapping the packets used before the tables, kept as is as the reference of {@link #selfTest()}
+     */
+    private static Optional<BlockState> baseline(@NotNull BlockState blockState, boolean replaceClickableBlocks) {
+        Block block = blockState.getBlock();
+        if (block instanceof CustomBlock customBlock) {
+            // if replaceClickableBlocks is true, we try to replace it with the non-clickable block if it is not null
+            return replaceClickableBlocks ?
+                    Optional.of(
+                            Optional.ofNullable(customBlock.getNotClickableBlockState())
+                                    .orElse(customBlock.getClientBlockState())
+                    ) :
+                    Optional.of(customBlock.getClientBlockState());
+        } else if (block == Blocks.BROWN_MUSHROOM_BLOCK || block == Blocks.RED_MUSHROOM_BLOCK || block == Blocks.MUSHROOM_STEM) {
+            return Optional.of(BlockStateProvider.getMushroomBlockState(blockState, 63));
+        } else if (block == Blocks.DROPPER || block == Blocks.DISPENSER) {
+            return Optional.of(blockState.setValue(BlockStateProperties.TRIGGERED, false));
+        } else if (block == Blocks.PALE_OAK_LEAVES) {
+            return Optional.of(BlockStateProvider.getLeavesBlockState(blockState, 13));
+        } else if (block == Blocks.TARGET) {
+            return Optional.of(BlockStateProvider.getTargetBlockState(blockState, 0));
+        }
+        return Optional.empty();
+    }
+
+    private static int toClientId(int id, @Nullable BlockState clientBlockState) {
+        if (clientBlockState == null) return UNCHANGED;
+        int clientId = Block.getId(clientBlockState);
+        return clientId == id ? UNCHANGED : clientId;
+    }
+}
@@ -0,0 +1,120 @@
+package dev.lost.engine.blocks;
+
+import dev.lost.annotations.CanBreakOnUpdates;
+import dev.lost.annotations.NotNull;
+import dev.lost.annotations.Nullable;
+import dev.lost.engine.blocks.customblocks.CustomBlock;
+import io.netty.buffer.Unpooled;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import net.minecraft.core.Holder;
+import net.minecraft.core.HolderSet;
+import net.minecraft.core.registries.BuiltInRegistries;
+import net.minecraft.core.registries.Registries;
+import net.minecraft.network.FriendlyByteBuf;
+import net.minecraft.resources.Identifier;
+import net.minecraft.tags.TagKey;
+import net.minecraft.tags.TagNetworkSerialization;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.Blocks;
+import org.bukkit.configuration.file.FileConfiguration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Block tags sent to the clients so the tool rules of the items can reference tags instead of listing every block.
+ * <p>
+ * Every block tag containing blocks that are hidden from the client tools (custom blocks and the mushroom blocks they are
+ * displayed as) gets a filtered copy named {@code lost_engine:client/<namespace>/<path>}. The copies are always sent,
+ * so toggling the config on reload doesn't break the players that are already connected.
+ */
+public class ClientBlockTags {
+
+    private static volatile boolean enabled = true;
+
+    public static void loadConfig(@NotNull FileConfiguration config) {
+        enabled = config.getBoolean("packet_rewriting.tool_tags.enabled", true);
+    }
+
+    /**
+     * @return whether the block must not be part of the tool rules sent to the client
+     */
+    public static boolean isHiddenFromTools(@NotNull Block block) {
+        return block instanceof CustomBlock || block == Blocks.MUSHROOM_STEM || block == Blocks.BROWN_MUSHROOM_BLOCK || block == Blocks.RED_MUSHROOM_BLOCK;
+    }
+
+    /**
+     * @return the tag to send in place of this tag in a tool rule,
+     * or {@code null} if the rule has to be sent as a direct holder set
+     */
+    public static @Nullable HolderSet<Block> getClientTag(@NotNull TagKey<Block> tagKey) {
+        if (!enabled) return null;
+        Optional<HolderSet.Named<Block>> tag = BuiltInRegistries.BLOCK.get(tagKey);
+        if (tag.isEmpty()) return null;
+        return hasHiddenBlocks(tag.get()) ? HolderSet.emptyNamed(BuiltInRegistries.BLOCK, toClientTagKey(tagKey)) : tag.get();
+    }
+
+    /**
+     * The filtered tags only exist on the client, the server can't test the blocks of a rule referencing one of them
+     *
+     * @return the blocks the client has in this tag as a direct holder set, or {@code blocks} itself if it is not a filtered tag
+     */
+    public static @NotNull HolderSet<Block> toServerBlocks(@NotNull HolderSet<Block> blocks) {
+        Optional<TagKey<Block>> clientTagKey = blocks.unwrapKey();
+        if (clientTagKey.isEmpty()) return blocks;
+        Identifier location = clientTagKey.get().location();
+        if (!location.getNamespace().equals("lost_engine") || !location.getPath().startsWith("client/")) return blocks;
+        String originalPath = location.getPath().substring("client/".length());
+        int separator = originalPath.indexOf('/');
+        Identifier originalLocation = separator < 0 ? null : Identifier.tryBuild(originalPath.substring(0, separator), originalPath.substring(separator + 1));
+        if (originalLocation == null) return blocks;
+        Optional<HolderSet.Named<Block>> tag = BuiltInRegistries.BLOCK.get(TagKey.create(Registries.BLOCK, originalLocation));
+        if (tag.isEmpty()) return HolderSet.empty();
+        List<Holder<Block>> filtered = new ArrayList<>(tag.get().size());
+        for (Holder<Block> holder : tag.get()) {
+            if (!isHiddenFromTools(holder.value())) filtered.add(holder);
+        }
+        return HolderSet.direct(filtered);
+    }
+
+    /**
+     * @return the block tags payload of a {@link net.minecraft.network.protocol.common.ClientboundUpdateTagsPacket} with the filtered tags added
+     */
+    @CanBreakOnUpdates("1.21.11") // The payload can only be created by reading it, see TagNetworkSerialization.NetworkPayload#write
+    public static @NotNull TagNetworkSerialization.NetworkPayload withClientTags(@NotNull TagNetworkSerialization.NetworkPayload payload) {
+        List<HolderSet.Named<Block>> tags = BuiltInRegistries.BLOCK.getTags().filter(ClientBlockTags::hasHiddenBlocks).toList();
+        if (tags.isEmpty()) return payload;
+        FriendlyByteBuf original = new FriendlyByteBuf(Unpooled.buffer());
+        FriendlyByteBuf buf = new FriendlyByteBuf(Unpooled.buffer());
+        try {
+            payload.write(original);
+            buf.writeVarInt(original.readVarInt() + tags.size());
+            buf.writeBytes(original);
+            for (HolderSet.Named<Block> tag : tags) {
+                IntArrayList ids = new IntArrayList(tag.size());
+                for (Holder<Block> holder : tag) {
+                    if (!isHiddenFromTools(holder.value())) ids.add(BuiltInRegistries.BLOCK.getId(holder.value()));
+                }
+                buf.writeUtf(toClientTagKey(tag.key()).location().toString());
+                buf.writeIntIdList(ids);
+            }
+            return TagNetworkSerialization.NetworkPayload.read(buf);
+        } finally {
+            original.release();
+            buf.release();
+        }
+    }
+
+    private static boolean hasHiddenBlocks(@NotNull HolderSet.Named<Block> tag) {
+        for (Holder<Block> holder : tag) {
+            if (isHiddenFromTools(holder.value())) return true;
+        }
+        return false;
+    }
+
+    private static @NotNull TagKey<Block> toClientTagKey(@NotNull TagKey<Block> tagKey) {
+        Identifier location = tagKey.location();
+        return TagKey.create(Registries.BLOCK, Identifier.fromNamespaceAndPath("lost_engine", "client/" + location.getNamespace() + "/" + location.getPath()));
+    }
+}
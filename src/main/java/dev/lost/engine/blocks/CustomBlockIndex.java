@@ -0,0 +1,190 @@
+package dev.lost.engine.blocks;
+
+import dev.lost.annotations.NotNull;
+import dev.lost.engine.LostEngine;
+import dev.lost.engine.blocks.customblocks.CustomBlock;
+import it.unimi.dsi.fastutil.HashCommon;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.LevelChunk;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import org.bukkit.Bukkit;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Positions of the custom blocks of a world, shared by every connection.
+ * <p>
+ * It is filled when chunks are loaded and kept up to date by the custom blocks themselves when they are placed or removed,
+ * the Netty threads only read it to know which block a player is actually mining.
+ */
+public class CustomBlockIndex {
+
+    private static final ConcurrentHashMap<ResourceKey<Level>, CustomBlockIndex> INDEXES = new ConcurrentHashMap<>();
+
+    private static final int STRIPES = 64;
+
+    /**
+     * The chunks whose key hashes to this stripe, guarded by the stripe itself so the chunk keys are never boxed
+     */
+    private static final class Stripe {
+        private final Long2ObjectOpenHashMap<ChunkCustomBlocks> chunks = new Long2ObjectOpenHashMap<>();
+        /// Positions to read again on the thread owning their chunk, see {@link #onBlockSent(long, BlockState)}
+        private final Long2ObjectOpenHashMap<LongOpenHashSet> pendingChecks = new Long2ObjectOpenHashMap<>();
+    }
+
+    private final ResourceKey<Level> dimension;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    private CustomBlockIndex(@NotNull ResourceKey<Level> dimension) {
+        this.dimension = dimension;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    private @NotNull Stripe stripe(long chunkPos) {
+        return stripes[(int) HashCommon.mix(chunkPos) & (STRIPES - 1)];
+    }
+
+    public static @NotNull CustomBlockIndex get(@NotNull ResourceKey<Level> dimension) {
+        return INDEXES.computeIfAbsent(dimension, CustomBlockIndex::new);
+    }
+
+    public static @NotNull CustomBlockIndex get(@NotNull Level level) {
+        return get(level.dimension());
+    }
+
+    public static void remove(@NotNull ResourceKey<Level> dimension) {
+        INDEXES.remove(dimension);
+    }
+
+    /**
+     * @return the custom block state at this position or {@code Blocks.AIR.defaultBlockState()} if there is no custom block
+     */
+    public @NotNull BlockState getBlockState(long pos) {
+        long chunkPos = toChunkPos(pos);
+        Stripe stripe = stripe(chunkPos);
+        ChunkCustomBlocks chunk;
+        synchronized (stripe) {
+            chunk = stripe.chunks.get(chunkPos);
+        }
+        return chunk == null ? Blocks.AIR.defaultBlockState() : Block.stateById(chunk.get(pos));
+    }
+
+    /**
+     * Sets the block state at this position, it is only stored if it is a custom block
+     */
+    public void update(long pos, @NotNull BlockState blockState) {
+        long chunkPos = toChunkPos(pos);
+        Stripe stripe = stripe(chunkPos);
+        synchronized (stripe) {
+            ChunkCustomBlocks chunk = stripe.chunks.get(chunkPos);
+            if (blockState.getBlock() instanceof CustomBlock) {
+                if (chunk == null) stripe.chunks.put(chunkPos, chunk = new ChunkCustomBlocks());
+                chunk.put(pos, Block.getId(blockState));
+            } else if (chunk != null) {
+                chunk.remove(pos);
+                if (chunk.isEmpty()) stripe.chunks.remove(chunkPos);
+            }
+        }
+    }
+
+    /**
+     * Called when a block change is sent to a client, if a custom block is involved the position is read again
+     * on the thread owning it. This catches changes that didn't go through the custom block hooks
+     * (e.g. blocks set without updating their neighbors) without trusting the packet, which may be a fake block.
+     * <p>
+     * Every connection sending the change calls this, so the positions are collected per chunk
+     * and a single task reads all of them.
+     */
+    public void onBlockSent(long pos, @NotNull BlockState blockState) {
+        if (!(blockState.getBlock() instanceof CustomBlock) && getBlockState(pos).isAir()) return;
+        ServerLevel level = MinecraftServer.getServer().getLevel(dimension);
+        if (level == null) return;
+        long chunkPos = toChunkPos(pos);
+        Stripe stripe = stripe(chunkPos);
+        synchronized (stripe) {
+            LongOpenHashSet positions = stripe.pendingChecks.get(chunkPos);
+            if (positions != null) {
+                // A task is already scheduled for this chunk
+                positions.add(pos);
+                return;
+            }
+            positions = new LongOpenHashSet();
+            positions.add(pos);
+            stripe.pendingChecks.put(chunkPos, positions);
+        }
+        int chunkX = ChunkPos.getX(chunkPos);
+        int chunkZ = ChunkPos.getZ(chunkPos);
+        Bukkit.getRegionScheduler().execute(LostEngine.getInstance(), level.getWorld(), chunkX, chunkZ, () -> {
+            LongOpenHashSet positions;
+            synchronized (stripe) {
+                positions = stripe.pendingChecks.remove(chunkPos);
+            }
+            LevelChunk chunk = level.getChunkIfLoaded(chunkX, chunkZ);
+            if (chunk == null || positions == null) return;
+            LongIterator iterator = positions.iterator();
+            while (iterator.hasNext()) {
+                long position = iterator.nextLong();
+                update(position, chunk.getBlockState(BlockPos.of(position)));
+            }
+        });
+    }
+
+    /**
+     * Scans the sections of a chunk that may contain custom blocks and replaces everything indexed for this chunk
+     */
+    public void loadChunk(@NotNull LevelChunk levelChunk) {
+        ChunkPos chunkPos = levelChunk.getPos();
+        ChunkCustomBlocks chunk = new ChunkCustomBlocks();
+        LevelChunkSection[] sections = levelChunk.getSections();
+        for (int i = 0; i < sections.length; i++) {
+            LevelChunkSection section = sections[i];
+            if (section.hasOnlyAir() || !section.getStates().maybeHas(state -> state.getBlock() instanceof CustomBlock)) continue;
+            int sectionMinY = SectionPos.sectionToBlockCoord(levelChunk.getSectionYFromSectionIndex(i));
+            for (int y = 0; y < 16; y++) {
+                for (int z = 0; z < 16; z++) {
+                    for (int x = 0; x < 16; x++) {
+                        BlockState blockState = section.getBlockState(x, y, z);
+                        if (blockState.getBlock() instanceof CustomBlock) {
+                            chunk.put(BlockPos.asLong(chunkPos.getMinBlockX() + x, sectionMinY + y, chunkPos.getMinBlockZ() + z), Block.getId(blockState));
+                        }
+                    }
+                }
+            }
+        }
+        long key = chunkPos.toLong();
+        Stripe stripe = stripe(key);
+        synchronized (stripe) {
+            if (chunk.isEmpty()) {
+                stripe.chunks.remove(key);
+            } else {
+                stripe.chunks.put(key, chunk);
+            }
+        }
+    }
+
+    public void unloadChunk(int chunkX, int chunkZ) {
+        long chunkPos = ChunkPos.asLong(chunkX, chunkZ);
+        Stripe stripe = stripe(chunkPos);
+        synchronized (stripe) {
+            stripe.chunks.remove(chunkPos);
+        }
+    }
+
+    private static long toChunkPos(long pos) {
+        return ChunkPos.asLong(SectionPos.blockToSectionCoord(BlockPos.getX(pos)), SectionPos.blockToSectionCoord(BlockPos.getZ(pos)));
+    }
+}
@@ -1,6 +1,11 @@
 package dev.lost.engine.blocks.customblocks;
 
+import dev.lost.annotations.NotNull;
+import dev.lost.engine.blocks.CustomBlockIndex;
 import lombok.Getter;
+import net.minecraft.core.BlockPos;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.Level;
 import net.minecraft.world.level.block.Block;
 import net.minecraft.world.level.block.state.BlockState;
 
@@ -15,4 +20,17 @@ public class RegularCustomBlock extends Block implements CustomBlock {
         this.clientBlockState = clientBlockState;
         this.notClickableBlockState = notClickableBlockState;
     }
+
+    @Override
+    protected void onPlace(@NotNull BlockState state, @NotNull Level level, @NotNull BlockPos pos, @NotNull BlockState oldState, boolean isMoving) {
+        super.onPlace(state, level, pos, oldState, isMoving);
+        CustomBlockIndex.get(level).update(pos.asLong(), state);
+    }
+
+    @Override
+    protected void affectNeighborsAfterRemoval(@NotNull BlockState state, @NotNull ServerLevel level, @NotNull BlockPos pos, boolean movedByPiston) {
+        super.affectNeighborsAfterRemoval(state, level, pos, movedByPiston);
+        // The new block is already in the world, it may be another custom block
+        CustomBlockIndex.get(level).update(pos.asLong(), level.getBlockState(pos));
+    }
 }
@@ -1,6 +1,7 @@
 package dev.lost.engine.blocks.customblocks;
 
 import dev.lost.annotations.NotNull;
+import dev.lost.engine.blocks.CustomBlockIndex;
 import lombok.Getter;
 import net.minecraft.core.BlockPos;
 import net.minecraft.network.chat.Component;
@@ -62,6 +63,8 @@ public class TNTCustomBlock extends Block implements CustomBlock {
      */
     @Override
     protected void onPlace(@NotNull BlockState state, @NotNull Level level, @NotNull BlockPos pos, @NotNull BlockState oldState, boolean isMoving) {
+        // Before priming it, removing the block updates the index again
+        CustomBlockIndex.get(level).update(pos.asLong(), state);
         if (!oldState.is(state.getBlock())) {
             if (level.hasNeighborSignal(pos) && prime(level, pos, () -> org.bukkit.craftbukkit.event.CraftEventFactory.callTNTPrimeEvent(level, pos, org.bukkit.event.block.TNTPrimeEvent.PrimeCause.REDSTONE, null, null))) { // CraftBukkit - TNTPrimeEvent
                 level.removeBlock(pos, false);
@@ -195,4 +198,9 @@ public class TNTCustomBlock extends Block implements CustomBlock {
         builder.add(UNSTABLE);
     }
 
+    @Override
+    protected void affectNeighborsAfterRemoval(@NotNull BlockState state, @NotNull ServerLevel level, @NotNull BlockPos pos, boolean movedByPiston) {
+        super.affectNeighborsAfterRemoval(state, level, pos, movedByPiston);
+        CustomBlockIndex.get(level).update(pos.asLong(), level.getBlockState(pos));
+    }
 }
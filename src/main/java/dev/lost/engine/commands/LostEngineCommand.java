@@ -5,8 +5,19 @@ import com.mojang.brigadier.tree.LiteralCommandNode;
 import dev.lost.annotations.NotNull;
 import dev.lost.engine.LostEngine;
 import dev.lost.engine.ResourcePackBuilder;
+import dev.lost.engine.blocks.ClientBlockStates;
+import dev.lost.engine.blocks.ClientBlockTags;
+import dev.lost.engine.listeners.BlockStateEncoder;
+import dev.lost.engine.listeners.BlockUpdateCoalescer;
+import dev.lost.engine.listeners.ChunkPacketCache;
+import dev.lost.engine.listeners.ChunkRewriteExecutor;
+import dev.lost.engine.listeners.ClientItemCache;
+import dev.lost.engine.listeners.ContainerContentShadow;
+import dev.lost.engine.listeners.PacketListener;
+import dev.lost.engine.listeners.PacketRewriterRegistry;
 import dev.lost.engine.utils.FileUtils;
 import dev.lost.engine.utils.HashUtils;
+import dev.lost.engine.utils.TimeUtils;
 import dev.lost.engine.webserver.WebRequestHandler;
 import dev.lost.engine.webserver.WebServer;
 import io.papermc.paper.command.brigadier.CommandSourceStack;
@@ -23,7 +34,10 @@ import org.bukkit.entity.Player;
 
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
 
@@ -42,6 +56,11 @@ public class LostEngineCommand {
                         Commands.literal("info")
                                 .executes(LostEngineCommand::info)
                 )
+                .then(
+                        Commands.literal("stats")
+                                .requires(commandSourceStack -> commandSourceStack.getSender().hasPermission("op"))
+                                .executes(LostEngineCommand::stats)
+                )
                 .then(
                         Commands.literal("editor")
                                 .requires(commandSourceStack -> commandSourceStack.getSender().hasPermission("op"))
@@ -110,6 +129,75 @@ public class LostEngineCommand {
         return 1;
     }
 
+    private static int stats(@NotNull CommandContext<CommandSourceStack> context) {
+        CommandSender sender = context.getSource().getSender();
+        long hits = ChunkPacketCache.getHits();
+        long misses = ChunkPacketCache.getMisses();
+        sender.sendMessage(Component.text(String.format(
+                "Chunk cache: %d hits, %d misses (%.1f%%), %d chunks, %.1f/%.1f MB",
+                hits,
+                misses,
+                hits + misses == 0 ? 0.0 : hits * 100.0 / (hits + misses),
+                ChunkPacketCache.getEntryCount(),
+                ChunkPacketCache.getSize() / 1048576.0,
+                ChunkPacketCache.getMaxSize() / 1048576.0
+        )));
+        sender.sendMessage(Component.text(String.format(
+                "Async chunk rewriting: %s, %d queued, %d active, %d rewritten, %d rejected, latency avg %s max %s",
+                ChunkRewriteExecutor.isEnabled() ? "enabled" : "disabled",
+                ChunkRewriteExecutor.getQueueDepth(),
+                ChunkRewriteExecutor.getActiveCount(),
+                ChunkRewriteExecutor.getRewrites(),
+                ChunkRewriteExecutor.getRejected(),
+                TimeUtils.formatNanos(ChunkRewriteExecutor.getAverageLatency()),
+                TimeUtils.formatNanos(ChunkRewriteExecutor.getMaxLatency())
+        )));
+        sender.sendMessage(Component.text(String.format(
+                "Block update coalescing: %s, %d block updates sent as %d section updates",
+                BlockUpdateCoalescer.isEnabled() ? "enabled" : "disabled",
+                BlockUpdateCoalescer.getCoalesced(),
+                BlockUpdateCoalescer.getSectionUpdates()
+        )));
+        long itemHits = ClientItemCache.getHits();
+        long itemMisses = ClientItemCache.getMisses();
+        sender.sendMessage(Component.text(String.format(
+                "Client item cache: %d hits, %d misses (%.1f%%), %d items",
+                itemHits,
+                itemMisses,
+                itemHits + itemMisses == 0 ? 0.0 : itemHits * 100.0 / (itemHits + itemMisses),
+                ClientItemCache.getEntryCount()
+        )));
+        long reused = ContainerContentShadow.getReused();
+        long translated = ContainerContentShadow.getTranslated();
+        sender.sendMessage(Component.text(String.format(
+                "Container contents: %d slots reused, %d translated (%.1f%% reused)",
+                reused,
+                translated,
+                reused + translated == 0 ? 0.0 : reused * 100.0 / (reused + translated)
+        )));
+        // The rewriters that took the most time first
+        List<Map.Entry<String, PacketRewriterRegistry.Entry>> rewriters = new ArrayList<>();
+        for (PacketRewriterRegistry registry : PacketListener.getRewriters()) {
+            for (PacketRewriterRegistry.Entry entry : registry.getEntries()) {
+                if (entry.getInvocations() > 0 || !entry.isEnabled()) rewriters.add(Map.entry(registry.getDirection() + "." + entry.getName(), entry));
+            }
+        }
+        rewriters.sort(Comparator.comparingLong((Map.Entry<String, PacketRewriterRegistry.Entry> entry) -> entry.getValue().getNanos()).reversed());
+        sender.sendMessage(Component.text("Packet rewriters: " + rewriters.size() + " used or disabled"));
+        for (Map.Entry<String, PacketRewriterRegistry.Entry> rewriter : rewriters.subList(0, Math.min(10, rewriters.size()))) {
+            PacketRewriterRegistry.Entry entry = rewriter.getValue();
+            sender.sendMessage(Component.text(String.format(
+                    "  %s: %s%d packets, %d rewritten, %s total",
+                    rewriter.getKey(),
+                    entry.isEnabled() ? "" : "disabled, ",
+                    entry.getInvocations(),
+                    entry.getRewrites(),
+                    TimeUtils.formatNanos(entry.getNanos())
+            )));
+        }
+        return 1;
+    }
+
     private static int reload(@NotNull CommandContext<CommandSourceStack> context) {
         CommandSender sender = context.getSource().getSender();
         LostEngine plugin = LostEngine.getInstance();
@@ -117,6 +205,17 @@ public class LostEngineCommand {
         plugin.reloadConfig();
         if (sender instanceof Player) sender.sendMessage("Reloading LostEngine configuration and resource pack...");
         plugin.getSLF4JLogger().info("Reloading LostEngine configuration and resource pack...");
+        ClientBlockStates.build();
+        ChunkPacketCache.loadConfig(plugin.getConfig());
+        ChunkRewriteExecutor.loadConfig(plugin.getConfig());
+        BlockStateEncoder.loadConfig(plugin.getConfig());
+        BlockUpdateCoalescer.loadConfig(plugin.getConfig());
+        ClientBlockTags.loadConfig(plugin.getConfig());
+        PacketListener.clearClientTools();
+        PacketListener.clearPaintingVariants();
+        ClientItemCache.loadConfig(plugin.getConfig());
+        ContainerContentShadow.invalidate();
+        PacketListener.loadConfig(plugin.getConfig());
 
         byte[] resourcePackHash;
         try {
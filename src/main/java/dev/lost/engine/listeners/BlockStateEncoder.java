@@ -0,0 +1,259 @@
+package dev.lost.engine.listeners;
+
+import dev.lost.annotations.CanBreakOnUpdates;
+import dev.lost.annotations.NotNull;
+import dev.lost.engine.LostEngine;
+import dev.lost.engine.blocks.ClientBlockStates;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+import it.unimi.dsi.fastutil.shorts.ShortArraySet;
+import it.unimi.dsi.fastutil.shorts.ShortSet;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.RegistryAccess;
+import net.minecraft.core.SectionPos;
+import net.minecraft.network.RegistryFriendlyByteBuf;
+import net.minecraft.network.VarInt;
+import net.minecraft.network.VarLong;
+import net.minecraft.network.codec.StreamCodec;
+import net.minecraft.network.protocol.game.ClientboundBlockUpdatePacket;
+import net.minecraft.network.protocol.game.ClientboundLevelEventPacket;
+import net.minecraft.network.protocol.game.ClientboundSectionBlocksUpdatePacket;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import net.minecraft.world.level.chunk.PalettedContainerFactory;
+import org.bukkit.configuration.file.FileConfiguration;
+
+import java.util.Arrays;
+
+/**
+ * Translates the block state ids of block updates and block events while they are encoded,
+ * instead of rebuilding the packets (or writing their fields through reflection) before vanilla encodes them.
+ * <p>
+ * It sits right after the vanilla encoder: {@link PacketListener.ChannelDupeHandler} sets the {@link Layout}
+ * of the packet it is writing, vanilla encodes it in the same call and the ids are replaced in the encoded bytes.
+ */
+@CanBreakOnUpdates("1.21.11") // The packet formats may change, selfTest() makes sure they didn't
+public class BlockStateEncoder extends ChannelOutboundHandlerAdapter {
+
+    /**
+     * Where the block state ids are in the encoded packet
+     */
+    enum Layout {
+        /// {@link ClientboundBlockUpdatePacket}
+        BLOCK_UPDATE,
+        /// {@link ClientboundSectionBlocksUpdatePacket}
+        SECTION_BLOCKS_UPDATE,
+        /// {@link ClientboundLevelEventPacket}
+        LEVEL_EVENT
+    }
+
+    private static final int BLOCK_BREAK_EVENT = 2001;
+    private static final int BRUSH_FINISHED_EVENT = 3008;
+
+    private static volatile boolean configEnabled = true;
+    private static volatile boolean supported = false;
+
+    private final PacketListener.ChannelDupeHandler handler;
+
+    private BlockStateEncoder(@NotNull PacketListener.ChannelDupeHandler handler) {
+        this.handler = handler;
+    }
+
+    public static void loadConfig(@NotNull FileConfiguration config) {
+        configEnabled = config.getBoolean("packet_rewriting.encoder_block_states.enabled", true);
+    }
+
+    static boolean isEnabled() {
+        return configEnabled && supported;
+    }
+
+    /**
+     * Adds the encoder to a new channel, the vanilla encoder is called "outbound_config" until the protocol is configured
+     * and is then replaced in place by the "encoder"
+     */
+    static void install(@NotNull Channel channel, @NotNull PacketListener.ChannelDupeHandler handler) {
+        String encoderName = channel.pipeline().get("encoder") != null ? "encoder" :
+                channel.pipeline().get("outbound_config") != null ? "outbound_config" : null;
+        if (encoderName == null) return;
+        channel.pipeline().addBefore(encoderName, "lost_engine_block_state_encoder", new BlockStateEncoder(handler));
+        handler.hasBlockStateEncoder = true;
+    }
+
+    static void uninstall(@NotNull ChannelPipeline pipeline, @NotNull PacketListener.ChannelDupeHandler handler) {
+        if (!handler.hasBlockStateEncoder) return;
+        handler.hasBlockStateEncoder = false;
+        if (pipeline.get("lost_engine_block_state_encoder") != null) pipeline.remove("lost_engine_block_state_encoder");
+    }
+
+    @Override
+    public void write(@NotNull ChannelHandlerContext ctx, @NotNull Object msg, @NotNull ChannelPromise promise) throws Exception {
+        Layout layout = handler.encodingLayout;
+        if (layout != null && msg instanceof ByteBuf buf) {
+            handler.encodingLayout = null;
+            msg = translate(buf, layout, ctx.alloc(), ClientBlockStates.getTable(true), ClientBlockStates.getTable(false));
+        }
+        super.write(ctx, msg, promise);
+    }
+
+    /**
+     * @param in                  the encoded packet, starting with its id
+     * @param clientIds           table used for block states, see {@link ClientBlockStates#getTable(boolean)}
+     * @param blockEventClientIds table used for block events
+     * @return {@code in} if nothing changed or could be changed in place, otherwise a new buffer and {@code in} is released
+     */
+    static @NotNull ByteBuf translate(
+            @NotNull ByteBuf in,
+            @NotNull Layout layout,
+            @NotNull ByteBufAllocator alloc,
+            int @NotNull [] clientIds,
+            int @NotNull [] blockEventClientIds
+    ) {
+        int start = in.readerIndex();
+        try {
+            VarInt.read(in); // Packet id
+            return switch (layout) {
+                case BLOCK_UPDATE -> translateBlockUpdate(in, start, alloc, clientIds);
+                case SECTION_BLOCKS_UPDATE -> translateSectionBlocksUpdate(in, start, alloc, clientIds);
+                case LEVEL_EVENT -> translateLevelEvent(in, blockEventClientIds);
+            };
+        } finally {
+            if (in.refCnt() > 0) in.readerIndex(start);
+        }
+    }
+
+    private static @NotNull ByteBuf translateBlockUpdate(@NotNull ByteBuf in, int start, @NotNull ByteBufAllocator alloc, int @NotNull [] clientIds) {
+        in.skipBytes(Long.BYTES); // Block pos
+        int idIndex = in.readerIndex();
+        int clientId = getClientId(clientIds, VarInt.read(in));
+        if (clientId == ClientBlockStates.UNCHANGED) return in;
+        ByteBuf out = alloc.buffer(in.writerIndex() - start + 5); // A VarInt is at most 5 bytes
+        out.writeBytes(in, start, idIndex - start);
+        VarInt.write(out, clientId);
+        out.writeBytes(in, in.readerIndex(), in.readableBytes());
+        in.release();
+        return out;
+    }
+
+    private static @NotNull ByteBuf translateSectionBlocksUpdate(@NotNull ByteBuf in, int start, @NotNull ByteBufAllocator alloc, int @NotNull [] clientIds) {
+        in.skipBytes(Long.BYTES); // Section pos
+        int count = VarInt.read(in);
+        ByteBuf out = null;
+        for (int i = 0; i < count; i++) {
+            int entryIndex = in.readerIndex();
+            // Block state id << 12 | position in the section
+            long entry = VarLong.read(in);
+            int clientId = getClientId(clientIds, (int) (entry >>> 12));
+            if (clientId != ClientBlockStates.UNCHANGED && out == null) {
+                // Only copy the packet once something has to change
+                out = alloc.buffer(in.writerIndex() - start + count);
+                out.writeBytes(in, start, entryIndex - start);
+            }
+            if (out != null) {
+                VarLong.write(out, clientId == ClientBlockStates.UNCHANGED ? entry : (long) clientId << 12 | entry & 0xFFF);
+            }
+        }
+        if (out == null) return in;
+        out.writeBytes(in, in.readerIndex(), in.readableBytes());
+        in.release();
+        return out;
+    }
+
+    private static @NotNull ByteBuf translateLevelEvent(@NotNull ByteBuf in, int @NotNull [] blockEventClientIds) {
+        int type = in.readInt();
+        in.skipBytes(Long.BYTES); // Block pos
+        if (type == BLOCK_BREAK_EVENT || type == BRUSH_FINISHED_EVENT) {
+            int dataIndex = in.readerIndex();
+            int clientId = getBlockEventClientId(blockEventClientIds, in.readInt());
+            // Fixed size int, it can be replaced in place
+            if (clientId != ClientBlockStates.UNCHANGED) in.setInt(dataIndex, clientId);
+        }
+        return in;
+    }
+
+    private static int getClientId(int @NotNull [] clientIds, int id) {
+        return id >= 0 && id < clientIds.length ? clientIds[id] : ClientBlockStates.UNCHANGED;
+    }
+
+    /**
+     * Block events only use the block and not its state, see {@link ClientBlockStates#getBlockEventClientId(int)}
+     */
+    private static int getBlockEventClientId(int @NotNull [] clientIds, int id) {
+        return getClientId(clientIds, Block.getId(Block.stateById(id).getBlock().defaultBlockState()));
+    }
+
+    /**
+     * Encodes every packet layout using vanilla code and checks that translating them gives the same result as encoding
+     * the translated packet, if it doesn't, the packet formats probably changed and the packets are rewritten like before.
+     */
+    static void selfTest() {
+        try {
+            BlockState stone = Blocks.STONE.defaultBlockState();
+            BlockState granite = Blocks.GRANITE.defaultBlockState();
+            int[] clientIds = new int[Block.BLOCK_STATE_REGISTRY.size()];
+            Arrays.fill(clientIds, ClientBlockStates.UNCHANGED);
+            clientIds[Block.getId(stone)] = Block.getId(granite);
+
+            supported = test(Layout.BLOCK_UPDATE, ClientboundBlockUpdatePacket.STREAM_CODEC, clientIds,
+                    new ClientboundBlockUpdatePacket(BlockPos.ZERO, stone),
+                    new ClientboundBlockUpdatePacket(BlockPos.ZERO, granite)
+            ) && test(Layout.SECTION_BLOCKS_UPDATE, ClientboundSectionBlocksUpdatePacket.STREAM_CODEC, clientIds,
+                    createTestSectionBlocksUpdate(stone),
+                    createTestSectionBlocksUpdate(granite)
+            ) && test(Layout.LEVEL_EVENT, ClientboundLevelEventPacket.STREAM_CODEC, clientIds,
+                    new ClientboundLevelEventPacket(BLOCK_BREAK_EVENT, BlockPos.ZERO, Block.getId(stone), false),
+                    new ClientboundLevelEventPacket(BLOCK_BREAK_EVENT, BlockPos.ZERO, Block.getId(granite), false)
+            );
+        } catch (Exception e) {
+            LostEngine.logger().warn("Block state encoder self-test failed", e);
+            supported = false;
+        }
+        if (!supported) {
+            LostEngine.logger().warn("The block update packet formats don't match what LostEngine expects, falling back to rebuilding the packets");
+        }
+    }
+
+    private static <T> boolean test(@NotNull Layout layout, @NotNull StreamCodec<? super RegistryFriendlyByteBuf, T> codec, int @NotNull [] clientIds, @NotNull T packet, @NotNull T expectedPacket) {
+        ByteBuf expected = encodeTestPacket(codec, expectedPacket);
+        ByteBuf translated = translate(encodeTestPacket(codec, packet), layout, UnpooledByteBufAllocator.DEFAULT, clientIds, clientIds);
+        try {
+            return ByteBufUtil.equals(expected, translated);
+        } finally {
+            expected.release();
+            translated.release();
+        }
+    }
+
+    private static <T> @NotNull ByteBuf encodeTestPacket(@NotNull StreamCodec<? super RegistryFriendlyByteBuf, T> codec, @NotNull T packet) {
+        RegistryFriendlyByteBuf buf = new RegistryFriendlyByteBuf(Unpooled.buffer(), MinecraftServer.getServer().registryAccess());
+        VarInt.write(buf, 0); // Packet id, it isn't read
+        codec.encode(buf, packet);
+        return buf;
+    }
+
+    /**
+     * Some blocks that need to be translated between some that don't
+     */
+    private static @NotNull ClientboundSectionBlocksUpdatePacket createTestSectionBlocksUpdate(@NotNull BlockState stone) {
+        RegistryAccess registryAccess = MinecraftServer.getServer().registryAccess();
+        //noinspection DataFlowIssue -- It should work fine
+        LevelChunkSection section = new LevelChunkSection(PalettedContainerFactory.create(registryAccess), null, null, 0);
+        ShortSet positions = new ShortArraySet();
+        for (int i = 0; i < 8; i++) {
+            BlockPos pos = new BlockPos(i, i * 2, 15 - i);
+            section.setBlockState(pos.getX(), pos.getY(), pos.getZ(), i % 3 == 0 ? Blocks.DIRT.defaultBlockState() : stone);
+            positions.add(SectionPos.sectionRelativePos(pos));
+        }
+        return new ClientboundSectionBlocksUpdatePacket(SectionPos.of(0, 0, 0), positions, section);
+    }
+}
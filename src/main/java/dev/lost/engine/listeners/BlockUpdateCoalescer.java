@@ -0,0 +1,144 @@
+package dev.lost.engine.listeners;
+
+import dev.lost.annotations.NotNull;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.concurrent.PromiseCombiner;
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.shorts.Short2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.shorts.Short2ObjectMap;
+import net.minecraft.core.SectionPos;
+import net.minecraft.network.FriendlyByteBuf;
+import net.minecraft.network.protocol.Packet;
+import net.minecraft.network.protocol.game.ClientboundBlockUpdatePacket;
+import net.minecraft.network.protocol.game.ClientboundSectionBlocksUpdatePacket;
+import net.minecraft.world.level.block.Block;
+import org.bukkit.configuration.file.FileConfiguration;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Buffers the block updates written to a connection until it is flushed, the updates of a same section are then
+ * sent as a single {@link ClientboundSectionBlocksUpdatePacket} where the last update of a position wins.
+ * <p>
+ * Only consecutive block updates are buffered, any other packet sends them first so the packet order is kept.
+ */
+public class BlockUpdateCoalescer {
+
+    private static final LongAdder COALESCED = new LongAdder();
+    private static final LongAdder SECTION_UPDATES = new LongAdder();
+
+    private static volatile boolean enabled = false;
+
+    private final Long2ObjectLinkedOpenHashMap<Short2ObjectLinkedOpenHashMap<ClientboundBlockUpdatePacket>> sections = new Long2ObjectLinkedOpenHashMap<>();
+    private final ObjectArrayList<ChannelPromise> promises = new ObjectArrayList<>();
+
+    public static void loadConfig(@NotNull FileConfiguration config) {
+        enabled = config.getBoolean("packet_rewriting.coalesce_block_updates.enabled", false);
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    @FunctionalInterface
+    interface PacketWriter {
+        void write(@NotNull Object packet, @NotNull ChannelPromise promise) throws Exception;
+    }
+
+    void add(@NotNull ClientboundBlockUpdatePacket packet, @NotNull ChannelPromise promise) {
+        sections.computeIfAbsent(SectionPos.asLong(packet.getPos()), sectionPos -> new Short2ObjectLinkedOpenHashMap<>())
+                .put(SectionPos.sectionRelativePos(packet.getPos()), packet);
+        promises.add(promise);
+    }
+
+    boolean isEmpty() {
+        return promises.isEmpty();
+    }
+
+    /**
+     * Writes one packet per buffered section, the promises of the buffered updates are completed once all of them are written
+     */
+    void drain(@NotNull ChannelHandlerContext ctx, @NotNull PacketWriter writer) {
+        if (promises.isEmpty()) return;
+        List<ChannelPromise> originalPromises = new ObjectArrayList<>(promises);
+        promises.clear();
+        ChannelPromise aggregatePromise = ctx.newPromise();
+        aggregatePromise.addListener(future -> {
+            for (ChannelPromise promise : originalPromises) {
+                if (future.isSuccess()) {
+                    promise.trySuccess();
+                } else {
+                    promise.tryFailure(future.cause());
+                }
+            }
+        });
+
+        PromiseCombiner combiner = new PromiseCombiner(ctx.executor());
+        for (Long2ObjectMap.Entry<Short2ObjectLinkedOpenHashMap<ClientboundBlockUpdatePacket>> entry : sections.long2ObjectEntrySet()) {
+            Short2ObjectLinkedOpenHashMap<ClientboundBlockUpdatePacket> updates = entry.getValue();
+            ChannelPromise promise = ctx.newPromise();
+            combiner.add((ChannelFuture) promise);
+            try {
+                Packet<?> packet;
+                if (updates.size() == 1) {
+                    packet = updates.get(updates.firstShortKey());
+                } else {
+                    packet = toSectionBlocksUpdate(entry.getLongKey(), updates);
+                    COALESCED.add(updates.size());
+                    SECTION_UPDATES.increment();
+                }
+                writer.write(packet, promise);
+            } catch (Exception e) {
+                promise.tryFailure(e);
+                ctx.fireExceptionCaught(e);
+            }
+        }
+        sections.clear();
+        combiner.finish(aggregatePromise);
+    }
+
+    /**
+     * Drops the buffered updates when they can't be written anymore (e.g. the connection is closed)
+     */
+    void fail(@NotNull Throwable cause) {
+        for (ChannelPromise promise : promises) {
+            promise.tryFailure(cause);
+        }
+        promises.clear();
+        sections.clear();
+    }
+
+    /**
+     * The packet has no constructor taking the block states directly, so it is decoded from its wire format
+     */
+    private static @NotNull ClientboundSectionBlocksUpdatePacket toSectionBlocksUpdate(long sectionPos, @NotNull Short2ObjectLinkedOpenHashMap<ClientboundBlockUpdatePacket> updates) {
+        FriendlyByteBuf buf = new FriendlyByteBuf(Unpooled.buffer(Long.BYTES + 5 + updates.size() * 4));
+        try {
+            buf.writeLong(sectionPos);
+            buf.writeVarInt(updates.size());
+            for (Short2ObjectMap.Entry<ClientboundBlockUpdatePacket> update : updates.short2ObjectEntrySet()) {
+                buf.writeVarLong((long) Block.getId(update.getValue().getBlockState()) << 12 | update.getShortKey());
+            }
+            return ClientboundSectionBlocksUpdatePacket.STREAM_CODEC.decode(buf);
+        } finally {
+            buf.release();
+        }
+    }
+
+    /**
+     * @return the number of block updates sent as part of a section update
+     */
+    public static long getCoalesced() {
+        return COALESCED.sum();
+    }
+
+    public static long getSectionUpdates() {
+        return SECTION_UPDATES.sum();
+    }
+}
@@ -0,0 +1,105 @@
+package dev.lost.engine.listeners;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import dev.lost.annotations.NotNull;
+import dev.lost.annotations.Nullable;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.Level;
+import org.bukkit.configuration.file.FileConfiguration;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of rewritten chunk packet buffers shared by every connection.
+ * <p>
+ * The rewritten chunk only depends on the chunk contents and the dimension height,
+ * so when the same chunk is sent to several players it only has to be rewritten once.
+ * Entries are keyed by world and chunk position, and only used if the packet buffer they were built from
+ * has the same length and hash as the one being sent (the content version), block changes in the chunk also drop the entry.
+ * <p>
+ * Every connection looks it up and invalidates it for each block change, so it is a Caffeine cache weighed by the size of its buffers.
+ */
+public class ChunkPacketCache {
+
+    private record ChunkKey(ResourceKey<Level> dimension, long chunkPos) {
+    }
+
+    /**
+     * Only the hash of the source buffer is kept, a 128-bit hash makes a collision with the same length unlikely enough
+     */
+    private record Entry(int sourceLength, HashCode sourceHash, int sectionCount, int minY, PacketListener.ChunkRewrite rewrite) {
+    }
+
+    private static final HashFunction SOURCE_HASH = Hashing.murmur3_128();
+    private static final LongAdder HITS = new LongAdder();
+    private static final LongAdder MISSES = new LongAdder();
+    private static volatile boolean enabled = true;
+    private static volatile long maxSize = 64L * 1024 * 1024;
+    private static volatile Cache<ChunkKey, Entry> entries = createCache(maxSize);
+
+    public static void loadConfig(@NotNull FileConfiguration config) {
+        enabled = config.getBoolean("packet_rewriting.chunk_cache.enabled", true);
+        long maxSize = Math.max(0, config.getLong("packet_rewriting.chunk_cache.max_size_mb", 64)) * 1024 * 1024;
+        if (!enabled || maxSize != ChunkPacketCache.maxSize) {
+            ChunkPacketCache.maxSize = maxSize;
+            entries = createCache(maxSize);
+        }
+    }
+
+    private static @NotNull Cache<ChunkKey, Entry> createCache(long maxSize) {
+        return Caffeine.newBuilder()
+                .maximumWeight(maxSize)
+                .<ChunkKey, Entry>weigher((key, entry) -> 64 + (entry.rewrite().buffer() != null ? entry.rewrite().buffer().length : 0))
+                .build();
+    }
+
+    static @Nullable PacketListener.ChunkRewrite get(@NotNull ResourceKey<Level> dimension, int chunkX, int chunkZ, byte @NotNull [] source, int sectionCount, int minY) {
+        if (!enabled) return null;
+        Entry entry = entries.getIfPresent(new ChunkKey(dimension, ChunkPos.asLong(chunkX, chunkZ)));
+        if (entry != null && entry.sectionCount() == sectionCount && entry.minY() == minY && entry.sourceLength() == source.length
+                && entry.sourceHash().equals(SOURCE_HASH.hashBytes(source))) {
+            HITS.increment();
+            return entry.rewrite();
+        }
+        MISSES.increment();
+        return null;
+    }
+
+    static void put(@NotNull ResourceKey<Level> dimension, int chunkX, int chunkZ, byte @NotNull [] source, int sectionCount, int minY, @NotNull PacketListener.ChunkRewrite rewrite) {
+        if (!enabled) return;
+        entries.put(new ChunkKey(dimension, ChunkPos.asLong(chunkX, chunkZ)), new Entry(source.length, SOURCE_HASH.hashBytes(source), sectionCount, minY, rewrite));
+    }
+
+    static void invalidate(@NotNull ResourceKey<Level> dimension, int chunkX, int chunkZ) {
+        if (!enabled) return;
+        entries.invalidate(new ChunkKey(dimension, ChunkPos.asLong(chunkX, chunkZ)));
+    }
+
+    public static long getHits() {
+        return HITS.sum();
+    }
+
+    public static long getMisses() {
+        return MISSES.sum();
+    }
+
+    public static long getEntryCount() {
+        return entries.estimatedSize();
+    }
+
+    /**
+     * @return the estimated size of the cache in bytes
+     */
+    public static long getSize() {
+        return entries.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0)).orElse(0L);
+    }
+
+    public static long getMaxSize() {
+        return maxSize;
+    }
+}
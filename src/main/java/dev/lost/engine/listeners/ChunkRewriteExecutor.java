@@ -0,0 +1,138 @@
+package dev.lost.engine.listeners;
+
+import dev.lost.annotations.NotNull;
+import dev.lost.annotations.Nullable;
+import org.bukkit.configuration.file.FileConfiguration;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Optional worker pool used to rewrite chunk batches off the Netty event loops,
+ * so one player loading a lot of chunks doesn't stall the other connections sharing their event loop.
+ * <p>
+ * The pool and its queue are bounded and each connection can only have a limited amount of chunks in it,
+ * when either limit is reached the chunk is rewritten on the event loop like before.
+ */
+public class ChunkRewriteExecutor {
+
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+    private static final LongAdder REWRITES = new LongAdder();
+    private static final LongAdder TOTAL_NANOS = new LongAdder();
+    private static final AtomicLong MAX_NANOS = new AtomicLong();
+    private static final LongAdder REJECTED = new LongAdder();
+
+    private static volatile @Nullable ThreadPoolExecutor executor;
+    private static volatile int maxPendingPerConnection = 8;
+
+    public static synchronized void loadConfig(@NotNull FileConfiguration config) {
+        shutdown();
+        maxPendingPerConnection = Math.max(1, config.getInt("packet_rewriting.async_chunks.max_pending_per_connection", 8));
+        if (!config.getBoolean("packet_rewriting.async_chunks.enabled", false)) return;
+        int threads = Math.max(1, config.getInt("packet_rewriting.async_chunks.threads", Math.max(1, Runtime.getRuntime().availableProcessors() / 4)));
+        int queueSize = Math.max(1, config.getInt("packet_rewriting.async_chunks.queue_size", 256));
+        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(
+                threads,
+                threads,
+                60,
+                TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "LostEngine Chunk Rewriter #" + THREAD_COUNTER.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy()
+        );
+        threadPoolExecutor.allowCoreThreadTimeOut(true);
+        executor = threadPoolExecutor;
+    }
+
+    /**
+     * Stops accepting new chunks, the ones already submitted are still rewritten
+     */
+    public static synchronized void shutdown() {
+        ThreadPoolExecutor threadPoolExecutor = executor;
+        executor = null;
+        if (threadPoolExecutor != null) threadPoolExecutor.shutdown();
+    }
+
+    public static boolean isEnabled() {
+        return executor != null;
+    }
+
+    static int getMaxPendingPerConnection() {
+        return maxPendingPerConnection;
+    }
+
+    /**
+     * @return the future result of the task or {@code null} if the pool is full, in which case the caller should run it itself
+     */
+    static <T> @Nullable CompletableFuture<T> submit(@NotNull Callable<T> task) {
+        ThreadPoolExecutor threadPoolExecutor = executor;
+        if (threadPoolExecutor == null) return null;
+        CompletableFuture<T> future = new CompletableFuture<>();
+        long submitTime = System.nanoTime();
+        try {
+            threadPoolExecutor.execute(() -> {
+                try {
+                    future.complete(task.call());
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                } finally {
+                    long nanos = System.nanoTime() - submitTime;
+                    REWRITES.increment();
+                    TOTAL_NANOS.add(nanos);
+                    MAX_NANOS.accumulateAndGet(nanos, Math::max);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            REJECTED.increment();
+            return null;
+        }
+        return future;
+    }
+
+    /**
+     * @return the number of chunks waiting for a worker
+     */
+    public static int getQueueDepth() {
+        ThreadPoolExecutor threadPoolExecutor = executor;
+        return threadPoolExecutor != null ? threadPoolExecutor.getQueue().size() : 0;
+    }
+
+    public static int getActiveCount() {
+        ThreadPoolExecutor threadPoolExecutor = executor;
+        return threadPoolExecutor != null ? threadPoolExecutor.getActiveCount() : 0;
+    }
+
+    public static long getRewrites() {
+        return REWRITES.sum();
+    }
+
+    /**
+     * @return the average time between a chunk being submitted and it being rewritten in nanoseconds
+     */
+    public static long getAverageLatency() {
+        long rewrites = REWRITES.sum();
+        return rewrites == 0 ? 0 : TOTAL_NANOS.sum() / rewrites;
+    }
+
+    public static long getMaxLatency() {
+        return MAX_NANOS.get();
+    }
+
+    /**
+     * @return the number of chunks rewritten on the event loop because the pool was full
+     */
+    public static long getRejected() {
+        return REJECTED.sum();
+    }
+}
@@ -0,0 +1,193 @@
+package dev.lost.engine.listeners;
+
+import dev.lost.annotations.CanBreakOnUpdates;
+import dev.lost.annotations.NotNull;
+import dev.lost.engine.LostEngine;
+import dev.lost.engine.blocks.ClientBlockStates;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import net.minecraft.core.RegistryAccess;
+import net.minecraft.network.FriendlyByteBuf;
+import net.minecraft.network.VarInt;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import net.minecraft.world.level.chunk.PalettedContainerFactory;
+
+import java.util.Arrays;
+
+/**
+ * Rewrites the sections of a chunk packet directly from their wire format without building {@link LevelChunkSection}s.
+ * <p>
+ * Indirect palettes are remapped and their packed data is copied untouched,
+ * only sections using the global palette have to be re-packed.
+ * Biomes are always copied untouched.
+ */
+@CanBreakOnUpdates("1.21.11") // The chunk section format may change, selfTest() makes sure it didn't
+class ChunkSectionTranscoder {
+
+    private static final int SECTION_BLOCKS = 4096;
+    private static final int SECTION_BIOMES = 64;
+    /// See {@link net.minecraft.world.level.chunk.Strategy}
+    private static final int MAX_INDIRECT_BLOCK_BITS = 8;
+    private static final int MAX_INDIRECT_BIOME_BITS = 3;
+
+    private static volatile boolean enabled = false;
+
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Transcodes {@code sectionCount} sections from {@code in} to {@code out}
+     *
+     * @param clientIds server to client block state id table, see {@link ClientBlockStates#getTable(boolean)}
+     * @return true if at least one block state was replaced
+     */
+    static boolean transcode(@NotNull ByteBuf in, @NotNull ByteBuf out, int sectionCount, int @NotNull [] clientIds) {
+        boolean changed = false;
+        for (int i = 0; i < sectionCount; i++) {
+            out.writeShort(in.readShort()); // Non-empty block count
+            changed |= transcodeBlockStates(in, out, clientIds);
+            copyBiomes(in, out);
+        }
+        return changed;
+    }
+
+    private static boolean transcodeBlockStates(@NotNull ByteBuf in, @NotNull ByteBuf out, int @NotNull [] clientIds) {
+        int bits = in.readUnsignedByte();
+        out.writeByte(bits);
+
+        // Single value palette
+        if (bits == 0) {
+            int id = VarInt.read(in);
+            int clientId = getClientId(clientIds, id);
+            VarInt.write(out, clientId == ClientBlockStates.UNCHANGED ? id : clientId);
+            return clientId != ClientBlockStates.UNCHANGED;
+        }
+
+        int longs = getStorageSize(bits, SECTION_BLOCKS);
+        boolean changed = false;
+
+        // Indirect palette, only the palette is remapped
+        if (bits <= MAX_INDIRECT_BLOCK_BITS) {
+            int paletteSize = VarInt.read(in);
+            VarInt.write(out, paletteSize);
+            for (int i = 0; i < paletteSize; i++) {
+                int id = VarInt.read(in);
+                int clientId = getClientId(clientIds, id);
+                if (clientId != ClientBlockStates.UNCHANGED) {
+                    VarInt.write(out, clientId);
+                    changed = true;
+                } else {
+                    VarInt.write(out, id);
+                }
+            }
+            out.writeBytes(in, longs * Long.BYTES);
+            return changed;
+        }
+
+        // Global palette, the values are block state ids so they have to be re-packed
+        int valuesPerLong = 64 / bits;
+        long mask = (1L << bits) - 1;
+        for (int l = 0, index = 0; l < longs; l++) {
+            long packed = in.readLong();
+            long newPacked = packed;
+            for (int j = 0; j < valuesPerLong && index < SECTION_BLOCKS; j++, index++) {
+                int shift = j * bits;
+                int id = (int) (packed >>> shift & mask);
+                int clientId = getClientId(clientIds, id);
+                if (clientId != ClientBlockStates.UNCHANGED) {
+                    newPacked = newPacked & ~(mask << shift) | ((long) clientId & mask) << shift;
+                    changed = true;
+                }
+            }
+            out.writeLong(newPacked);
+        }
+        return changed;
+    }
+
+    private static void copyBiomes(@NotNull ByteBuf in, @NotNull ByteBuf out) {
+        int start = in.readerIndex();
+        int bits = in.readUnsignedByte();
+        if (bits == 0) {
+            VarInt.read(in);
+        } else {
+            if (bits <= MAX_INDIRECT_BIOME_BITS) {
+                int paletteSize = VarInt.read(in);
+                for (int i = 0; i < paletteSize; i++) VarInt.read(in);
+            }
+            in.skipBytes(getStorageSize(bits, SECTION_BIOMES) * Long.BYTES);
+        }
+        out.writeBytes(in, start, in.readerIndex() - start);
+    }
+
+    private static int getClientId(int @NotNull [] clientIds, int id) {
+        return id >= 0 && id < clientIds.length ? clientIds[id] : ClientBlockStates.UNCHANGED;
+    }
+
+    /// See {@link net.minecraft.util.SimpleBitStorage}
+    private static int getStorageSize(int bits, int size) {
+        int valuesPerLong = 64 / bits;
+        return (size + valuesPerLong - 1) / valuesPerLong;
+    }
+
+    /**
+     * Writes sections with every palette type using vanilla code and checks that transcoding them gives the same result,
+     * if it doesn't, the chunk section format probably changed and the transcoder is disabled.
+     */
+    static void selfTest() {
+        ByteBuf vanilla = Unpooled.buffer();
+        ByteBuf expected = Unpooled.buffer();
+        ByteBuf transcoded = Unpooled.buffer();
+        try {
+            int stone = Block.getId(Blocks.STONE.defaultBlockState());
+            int granite = Block.getId(Blocks.GRANITE.defaultBlockState());
+            writeTestSections(new FriendlyByteBuf(vanilla), Blocks.STONE.defaultBlockState());
+            writeTestSections(new FriendlyByteBuf(expected), Blocks.GRANITE.defaultBlockState());
+
+            int[] clientIds = new int[Block.BLOCK_STATE_REGISTRY.size()];
+            Arrays.fill(clientIds, ClientBlockStates.UNCHANGED);
+            clientIds[stone] = granite;
+
+            transcode(vanilla, transcoded, 4, clientIds);
+            enabled = !vanilla.isReadable() && ByteBufUtil.equals(expected, transcoded);
+        } catch (Exception e) {
+            LostEngine.logger().warn("Chunk section transcoder self-test failed", e);
+            enabled = false;
+        } finally {
+            vanilla.release();
+            expected.release();
+            transcoded.release();
+        }
+        if (!enabled) {
+            LostEngine.logger().warn("The chunk section format doesn't match what LostEngine expects, falling back to slower chunk rewriting");
+        }
+    }
+
+    /**
+     * Writes an empty section (single value palette), two sections with an indirect palette and one with the global palette
+     */
+    private static void writeTestSections(@NotNull FriendlyByteBuf buf, @NotNull BlockState stone) {
+        RegistryAccess registryAccess = MinecraftServer.getServer().registryAccess();
+        for (int type = 0; type < 4; type++) {
+            //noinspection DataFlowIssue -- It should work fine
+            LevelChunkSection section = new LevelChunkSection(PalettedContainerFactory.create(registryAccess), null, null, 0);
+            if (type != 0) {
+                for (int index = 0; index < SECTION_BLOCKS; index++) {
+                    BlockState blockState = switch (type) {
+                        case 1 -> stone;
+                        case 2 -> index % 7 == 0 ? Blocks.DIRT.defaultBlockState() : stone;
+                        default -> index == 0 ? stone : Block.stateById(index + 2);
+                    };
+                    section.setBlockState(index & 15, index >> 8, index >> 4 & 15, blockState);
+                }
+            }
+            //noinspection DataFlowIssue -- actually nullable
+            section.write(buf, null, 0);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package dev.lost.engine.listeners;
+
+import dev.lost.annotations.NotNull;
+import dev.lost.annotations.Nullable;
+import dev.lost.engine.items.customitems.CustomItem;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import net.minecraft.network.chat.ChatType;
+import net.minecraft.network.chat.Component;
+import net.minecraft.network.chat.ComponentContents;
+import net.minecraft.network.chat.HoverEvent;
+import net.minecraft.network.chat.MutableComponent;
+import net.minecraft.network.chat.Style;
+import net.minecraft.network.chat.contents.TranslatableContents;
+import net.minecraft.world.item.ItemStack;
+
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Replaces the custom items shown by the {@code show_item} hover events of text components with their client item,
+ * the client doesn't know the custom items and would be kicked.
+ * <p>
+ * The component tree is walked directly and every method returns the instance it was given when nothing changed,
+ * so a component without custom items is not copied.
+ */
+public class ClientComponents {
+
+    public static @NotNull Component toClient(@NotNull Component component) {
+        Style style = component.getStyle();
+        Style newStyle = toClient(style);
+        ComponentContents contents = component.getContents();
+        ComponentContents newContents = contents instanceof TranslatableContents translatableContents ? toClient(translatableContents) : contents;
+        List<Component> siblings = component.getSiblings();
+        List<Component> newSiblings = null;
+        for (int i = 0, size = siblings.size(); i < size; i++) {
+            Component sibling = siblings.get(i);
+            Component newSibling = toClient(sibling);
+            if (newSiblings == null && newSibling != sibling) {
+                newSiblings = new ObjectArrayList<>(size);
+                newSiblings.addAll(siblings.subList(0, i));
+            }
+            if (newSiblings != null) newSiblings.add(newSibling);
+        }
+        if (newStyle == style && newContents == contents && newSiblings == null) return component;
+
+        MutableComponent newComponent = MutableComponent.create(newContents).setStyle(newStyle);
+        for (Component sibling : newSiblings != null ? newSiblings : siblings) {
+            newComponent.append(sibling);
+        }
+        return newComponent;
+    }
+
+    public static @Nullable Component toClientNullable(@Nullable Component component) {
+        return component == null ? null : toClient(component);
+    }
+
+    public static @NotNull Optional<Component> toClient(@NotNull Optional<Component> component) {
+        if (component.isEmpty()) return component;
+        Component newComponent = toClient(component.get());
+        return newComponent == component.get() ? component : Optional.of(newComponent);
+    }
+
+    public static @NotNull ChatType.Bound toClient(@NotNull ChatType.Bound chatType) {
+        Component name = toClient(chatType.name());
+        Optional<Component> targetName = toClient(chatType.targetName());
+        if (name == chatType.name() && targetName == chatType.targetName()) return chatType;
+        return new ChatType.Bound(chatType.chatType(), name, targetName);
+    }
+
+    private static @NotNull Style toClient(@NotNull Style style) {
+        HoverEvent hoverEvent = style.getHoverEvent();
+        if (hoverEvent == null) return style;
+        HoverEvent newHoverEvent = switch (hoverEvent) {
+            case HoverEvent.ShowItem(ItemStack item) when item.getItem() instanceof CustomItem ->
+                    new HoverEvent.ShowItem(PacketListener.editItem(item, false).orElse(item));
+            case HoverEvent.ShowText(Component text) -> {
+                Component newText = toClient(text);
+                yield newText == text ? hoverEvent : new HoverEvent.ShowText(newText);
+            }
+            default -> hoverEvent;
+        };
+        return newHoverEvent == hoverEvent ? style : style.withHoverEvent(newHoverEvent);
+    }
+
+    /**
+     * Arguments of translations can be components too
+     */
+    private static @NotNull TranslatableContents toClient(@NotNull TranslatableContents contents) {
+        Object[] args = contents.getArgs();
+        Object[] newArgs = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i] instanceof Component arg) {
+                Component newArg = toClient(arg);
+                if (newArg != arg) {
+                    if (newArgs == null) newArgs = args.clone();
+                    newArgs[i] = newArg;
+                }
+            }
+        }
+        return newArgs == null ? contents : new TranslatableContents(contents.getKey(), contents.getFallback(), newArgs);
+    }
+}
@@ -0,0 +1,168 @@
+package dev.lost.engine.listeners;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import dev.lost.annotations.NotNull;
+import dev.lost.annotations.Nullable;
+import net.minecraft.core.component.DataComponentType;
+import net.minecraft.network.HashedPatchMap;
+import net.minecraft.network.HashedStack;
+import net.minecraft.world.item.Item;
+import net.minecraft.world.item.ItemStack;
+import org.bukkit.configuration.file.FileConfiguration;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.UnaryOperator;
+
+/**
+ * Cache of the items sent to the clients, shared by every connection.
+ * <p>
+ * The client item only depends on the server item, its component patch and whether it uses its dynamic material,
+ * so it is built once with a count of 1 and every packet gets a copy of it with its own count.
+ * The prototypes are never sent nor modified, copying them is cheap as the components are copied on write.
+ * They also keep the hashes of their components, so the items sent back by the clients are checked without building them again.
+ * <p>
+ * The cache is looked up from every event loop, so it is a Caffeine cache instead of a synchronized LRU map.
+ */
+public class ClientItemCache {
+
+    /**
+     * The components of the item compared by identity.
+     * <p>
+     * The copies of an item share their components until they are modified, so a lookup doesn't hash nor compare
+     * the whole patch (custom data, container contents...). Equal components that are distinct instances only cost another entry.
+     * <p>
+     * Setting a component replaces its value, so a key is also a snapshot of the components of an item, see {@link ContainerContentShadow}.
+     */
+    static final class Key {
+        private final Item item;
+        private final boolean dynamicMaterial;
+        /// Component types followed by their value, or null if the component is removed
+        private final Object[] components;
+        private final int hash;
+
+        Key(@NotNull ItemStack item, boolean dynamicMaterial) {
+            this.item = item.getItem();
+            this.dynamicMaterial = dynamicMaterial;
+            Set<Map.Entry<DataComponentType<?>, Optional<?>>> entries = item.getComponentsPatch().entrySet();
+            this.components = new Object[entries.size() * 2];
+            int hash = 31 * this.item.hashCode() + Boolean.hashCode(dynamicMaterial);
+            int i = 0;
+            for (Map.Entry<DataComponentType<?>, Optional<?>> entry : entries) {
+                Object value = entry.getValue().orElse(null);
+                components[i++] = entry.getKey();
+                components[i++] = value;
+                // The order of the entries doesn't matter
+                hash += System.identityHashCode(entry.getKey()) ^ System.identityHashCode(value);
+            }
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key key)) return false;
+            if (hash != key.hash || item != key.item || dynamicMaterial != key.dynamicMaterial || components.length != key.components.length) return false;
+            outer:
+            for (int i = 0; i < components.length; i += 2) {
+                for (int j = 0; j < key.components.length; j += 2) {
+                    if (components[i] == key.components[j]) {
+                        if (components[i + 1] != key.components[j + 1]) return false;
+                        continue outer;
+                    }
+                }
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * A client item with a count of 1, and the hashes of its components once a client sent it back
+     */
+    static final class ClientItem {
+        private final ItemStack prototype;
+        private volatile @Nullable HashedPatchMap hashedPatch;
+
+        private ClientItem(@NotNull ItemStack prototype) {
+            this.prototype = prototype;
+        }
+
+        /**
+         * The component hashes don't depend on the connection, so they are only computed once
+         */
+        boolean matches(@NotNull HashedStack.ActualItem hashedStack, int count, @NotNull HashedPatchMap.HashGenerator hashGenerator) {
+            if (hashedStack.count() != count || !hashedStack.item().equals(prototype.getItemHolder())) return false;
+            HashedPatchMap hashedPatch = this.hashedPatch;
+            if (hashedPatch == null) this.hashedPatch = hashedPatch = HashedPatchMap.create(prototype.getComponentsPatch(), hashGenerator);
+            return hashedStack.components().equals(hashedPatch);
+        }
+    }
+
+    private static final LongAdder HITS = new LongAdder();
+    private static final LongAdder MISSES = new LongAdder();
+    private static volatile boolean enabled = true;
+    private static volatile Cache<Key, ClientItem> entries = Caffeine.newBuilder().maximumSize(4096).build();
+
+    public static void loadConfig(@NotNull FileConfiguration config) {
+        enabled = config.getBoolean("packet_rewriting.client_item_cache.enabled", true);
+        // The custom items may have changed, so the cache is always replaced
+        entries = Caffeine.newBuilder()
+                .maximumSize(Math.max(0, config.getInt("packet_rewriting.client_item_cache.max_entries", 4096)))
+                .build();
+    }
+
+    /**
+     * @param item            the server item
+     * @param dynamicMaterial whether the item uses the dynamic material of its custom item
+     * @param builder         builds the client item from a copy of the server item with a count of 1
+     * @return a new client item with the count of the server item
+     */
+    static @NotNull ItemStack get(@NotNull ItemStack item, boolean dynamicMaterial, @NotNull UnaryOperator<ItemStack> builder) {
+        return getClientItem(item, dynamicMaterial, builder).prototype.copyWithCount(item.getCount());
+    }
+
+    /**
+     * @return whether the item hashes sent by a client match the client item of this server item
+     * @see #get(ItemStack, boolean, UnaryOperator)
+     */
+    static boolean matches(@NotNull HashedStack.ActualItem hashedStack, @NotNull ItemStack item, boolean dynamicMaterial, @NotNull UnaryOperator<ItemStack> builder, @NotNull HashedPatchMap.HashGenerator hashGenerator) {
+        return getClientItem(item, dynamicMaterial, builder).matches(hashedStack, item.getCount(), hashGenerator);
+    }
+
+    private static @NotNull ClientItem getClientItem(@NotNull ItemStack item, boolean dynamicMaterial, @NotNull UnaryOperator<ItemStack> builder) {
+        if (!enabled) return new ClientItem(builder.apply(item.copyWithCount(1)));
+        Cache<Key, ClientItem> entries = ClientItemCache.entries;
+        Key key = new Key(item, dynamicMaterial);
+        ClientItem clientItem = entries.getIfPresent(key);
+        if (clientItem != null) {
+            HITS.increment();
+        } else {
+            MISSES.increment();
+            // Built outside of the cache so a slow item doesn't block the lookups of the others
+            clientItem = new ClientItem(builder.apply(item.copyWithCount(1)));
+            entries.put(key, clientItem);
+        }
+        return clientItem;
+    }
+
+    public static long getHits() {
+        return HITS.sum();
+    }
+
+    public static long getMisses() {
+        return MISSES.sum();
+    }
+
+    public static long getEntryCount() {
+        return entries.estimatedSize();
+    }
+}
@@ -0,0 +1,82 @@
+package dev.lost.engine.listeners;
+
+import dev.lost.annotations.NotNull;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import net.minecraft.world.item.ItemStack;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntPredicate;
+
+/**
+ * Last contents of a container sent to a connection. When the full contents are sent again,
+ * the slots whose server item didn't change reuse the client item sent last time instead of being translated again.
+ * <p>
+ * Only the contents of the last container id are kept, they are dropped when another container is opened.
+ */
+public class ContainerContentShadow {
+
+    private static final LongAdder REUSED = new LongAdder();
+    private static final LongAdder TRANSLATED = new LongAdder();
+    private static volatile int generation = 0;
+
+    private int containerId = -1;
+    private int shadowGeneration = -1;
+    /// Components of the server items compared by identity, the items are neither copied nor deeply compared
+    private ClientItemCache.Key[] serverItems = new ClientItemCache.Key[0];
+    private int[] counts = new int[0];
+    /// null for the slots whose server item is sent as is
+    private ItemStack[] clientItems = new ItemStack[0];
+
+    /**
+     * Drops the contents kept by every connection, the client items may have changed
+     */
+    public static void invalidate() {
+        generation++;
+    }
+
+    /**
+     * @param isDynamicMaterial whether the item of a slot uses the dynamic material of its custom item
+     * @return the client items of the contents, {@code items} itself if none of them is translated
+     */
+    @NotNull List<ItemStack> toClientItems(int containerId, @NotNull List<ItemStack> items, @NotNull IntPredicate isDynamicMaterial) {
+        int size = items.size();
+        if (containerId != this.containerId || size != serverItems.length || shadowGeneration != generation) {
+            this.containerId = containerId;
+            shadowGeneration = generation;
+            serverItems = new ClientItemCache.Key[size];
+            counts = new int[size];
+            clientItems = new ItemStack[size];
+        }
+        List<ItemStack> result = new ObjectArrayList<>(size);
+        boolean changed = false;
+        for (int i = 0; i < size; i++) {
+            ItemStack item = items.get(i);
+            boolean dynamicMaterial = isDynamicMaterial.test(i);
+            ClientItemCache.Key serverItem = serverItems[i];
+            if (serverItem != null && counts[i] == item.getCount() && serverItem.equals(new ClientItemCache.Key(item, dynamicMaterial))) {
+                REUSED.increment();
+            } else {
+                TRANSLATED.increment();
+                clientItems[i] = PacketListener.editItem(item, dynamicMaterial).orElse(null);
+                // Taken after editItem as it may change the item, so the same item matches when it is sent again
+                serverItems[i] = new ClientItemCache.Key(item, dynamicMaterial);
+                counts[i] = item.getCount();
+            }
+            if (clientItems[i] != null) changed = true;
+            result.add(clientItems[i] != null ? clientItems[i] : item);
+        }
+        return changed ? result : items;
+    }
+
+    /**
+     * @return the number of slots that reused the client item sent last time
+     */
+    public static long getReused() {
+        return REUSED.sum();
+    }
+
+    public static long getTranslated() {
+        return TRANSLATED.sum();
+    }
+}
@@ -0,0 +1,62 @@
+package dev.lost.engine.listeners;
+
+import dev.lost.annotations.NotNull;
+import dev.lost.engine.LostEngine;
+import dev.lost.engine.blocks.CustomBlockIndex;
+import net.minecraft.world.level.chunk.ChunkAccess;
+import net.minecraft.world.level.chunk.LevelChunk;
+import net.minecraft.world.level.chunk.status.ChunkStatus;
+import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
+import org.bukkit.World;
+import org.bukkit.craftbukkit.CraftChunk;
+import org.bukkit.craftbukkit.CraftWorld;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
+
+/**
+ * Keeps the {@link CustomBlockIndex} of every world in sync with the loaded chunks
+ */
+public class CustomBlockIndexListener implements Listener {
+
+    public static void register(@NotNull LostEngine plugin) {
+        Bukkit.getPluginManager().registerEvents(new CustomBlockIndexListener(), plugin);
+        // Chunks loaded before the plugin was enabled
+        for (World world : Bukkit.getWorlds()) {
+            try {
+                for (Chunk chunk : world.getLoadedChunks()) {
+                    loadChunk(chunk);
+                }
+            } catch (Exception e) {
+                // Folia doesn't allow this outside the region threads, the chunks will be indexed when they are loaded again
+                LostEngine.logger().warn("Failed to index the custom blocks of the loaded chunks of {}", world.getName(), e);
+            }
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkLoad(@NotNull ChunkLoadEvent event) {
+        loadChunk(event.getChunk());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkUnload(@NotNull ChunkUnloadEvent event) {
+        CustomBlockIndex.get(((CraftWorld) event.getWorld()).getHandle()).unloadChunk(event.getChunk().getX(), event.getChunk().getZ());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onWorldUnload(@NotNull WorldUnloadEvent event) {
+        CustomBlockIndex.remove(((CraftWorld) event.getWorld()).getHandle().dimension());
+    }
+
+    private static void loadChunk(@NotNull Chunk chunk) {
+        ChunkAccess chunkAccess = ((CraftChunk) chunk).getHandle(ChunkStatus.FULL);
+        if (chunkAccess instanceof LevelChunk levelChunk) {
+            CustomBlockIndex.get(levelChunk.getLevel()).loadChunk(levelChunk);
+        }
+    }
+}
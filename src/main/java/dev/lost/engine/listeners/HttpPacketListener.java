@@ -1,9 +1,10 @@
 package dev.lost.engine.listeners;
 
 import dev.lost.annotations.NotNull;
+import dev.lost.annotations.Nullable;
 import dev.lost.engine.webserver.NettyHttpHandler;
 import io.netty.buffer.ByteBuf;
-import io.netty.channel.Channel;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPipeline;
@@ -11,9 +12,7 @@ import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpServerCodec;
 import io.papermc.paper.network.ChannelInitializeListenerHolder;
 import net.kyori.adventure.key.Key;
-import net.minecraft.network.Connection;
 import net.minecraft.network.FriendlyByteBuf;
-import net.minecraft.server.network.ServerHandshakePacketListenerImpl;
 import org.jetbrains.annotations.Contract;
 
 import java.nio.charset.StandardCharsets;
@@ -29,11 +28,8 @@ public class HttpPacketListener {
 
     private static class HttpChannelDupeHandler extends ChannelDuplexHandler {
 
-        private boolean isHandshake(@NotNull ChannelHandlerContext ctx) {
-            Channel channel = ctx.channel();
-            Connection connection = (Connection) channel.pipeline().get("packet_handler");
-            return connection != null && connection.getPacketListener() instanceof ServerHandshakePacketListenerImpl;
-        }
+        /// First bytes of the connection when it sent less than 4 of them
+        private @Nullable ByteBuf received = null;
 
         @Contract(pure = true)
         private boolean isHttp(@NotNull String prefix) {
@@ -65,21 +61,40 @@ public class HttpPacketListener {
         @Override
         public void channelRead(@NotNull ChannelHandlerContext ctx, Object msg) throws Exception {
             // Both Minecraft Java and HTTP use TCP,
-            // so we listen to any packet and if it is an HTTP packet we use it for the Web server
-            if (isHandshake(ctx) && msg instanceof ByteBuf byteBuf) {
+            // so we listen to the first packet and if it is an HTTP request we use the connection for the Web server.
+            // Otherwise it is a Minecraft handshake and nothing has to be listened to anymore
+            if (msg instanceof ByteBuf byteBuf) {
+                if (received != null) {
+                    byteBuf = Unpooled.wrappedBuffer(received, byteBuf);
+                    received = null;
+                }
+                if (byteBuf.readableBytes() < 4) {
+                    // Not enough to tell, the bytes are kept until the next read
+                    received = byteBuf;
+                    return;
+                }
                 FriendlyByteBuf friendlyBuf = new FriendlyByteBuf(byteBuf);
-                if (friendlyBuf.readableBytes() >= 4) {
-                    String prefix = friendlyBuf.toString(friendlyBuf.readerIndex(), 4, StandardCharsets.US_ASCII);
+                String prefix = friendlyBuf.toString(friendlyBuf.readerIndex(), 4, StandardCharsets.US_ASCII);
 
-                    if (isHttp(prefix)) {
-                        switchToHttp(ctx);
-                        ctx.pipeline().fireChannelRead(byteBuf.retain());
-                        return;
-                    }
+                if (isHttp(prefix)) {
+                    switchToHttp(ctx);
+                    ctx.pipeline().fireChannelRead(byteBuf.retain());
+                    return;
                 }
+                ctx.pipeline().remove(this);
+                msg = byteBuf;
             }
             super.channelRead(ctx, msg);
         }
+
+        @Override
+        public void handlerRemoved(@NotNull ChannelHandlerContext ctx) {
+            // The connection was closed before its first 4 bytes
+            if (received != null) {
+                received.release();
+                received = null;
+            }
+        }
     }
 
 }
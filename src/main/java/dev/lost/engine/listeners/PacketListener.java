@@ -1,36 +1,41 @@
 package dev.lost.engine.listeners;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.google.common.collect.MapMaker;
+import com.mojang.authlib.GameProfile;
 import com.mojang.datafixers.util.Pair;
-import com.mojang.serialization.JsonOps;
 import dev.lost.annotations.CanBreakOnUpdates;
-import dev.lost.annotations.MaybeNull;
 import dev.lost.annotations.NotNull;
 import dev.lost.annotations.Nullable;
 import dev.lost.engine.LostEngine;
-import dev.lost.engine.blocks.BlockStateProvider;
+import dev.lost.engine.blocks.ClientBlockStates;
+import dev.lost.engine.blocks.ClientBlockTags;
+import dev.lost.engine.blocks.CustomBlockIndex;
 import dev.lost.engine.blocks.customblocks.CustomBlock;
 import dev.lost.engine.entities.CustomThrownTrident;
 import dev.lost.engine.items.customitems.CustomItem;
 import dev.lost.engine.utils.BedrockUtils;
 import dev.lost.engine.utils.ItemUtils;
 import dev.lost.engine.utils.ReflectionUtils;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
 import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
 import io.papermc.paper.network.ChannelInitializeListenerHolder;
-import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
-import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
-import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
 import net.kyori.adventure.key.Key;
 import net.minecraft.core.*;
+import net.minecraft.core.component.DataComponentExactPredicate;
+import net.minecraft.core.component.DataComponentMap;
+import net.minecraft.core.component.DataComponentType;
 import net.minecraft.core.component.DataComponents;
+import net.minecraft.core.component.PatchedDataComponentMap;
 import net.minecraft.core.particles.BlockParticleOption;
 import net.minecraft.core.particles.ItemParticleOption;
 import net.minecraft.core.registries.BuiltInRegistries;
@@ -39,31 +44,44 @@ import net.minecraft.nbt.CompoundTag;
 import net.minecraft.nbt.NbtOps;
 import net.minecraft.nbt.Tag;
 import net.minecraft.network.Connection;
+import net.minecraft.network.ConnectionProtocol;
 import net.minecraft.network.FriendlyByteBuf;
+import net.minecraft.network.HashedPatchMap;
+import net.minecraft.network.HashedStack;
+import net.minecraft.network.chat.ChatType;
 import net.minecraft.network.chat.Component;
 import net.minecraft.network.chat.ComponentSerialization;
 import net.minecraft.network.protocol.Packet;
 import net.minecraft.network.protocol.common.ClientboundResourcePackPushPacket;
+import net.minecraft.network.protocol.common.ClientboundUpdateTagsPacket;
 import net.minecraft.network.protocol.common.ServerboundResourcePackPacket;
 import net.minecraft.network.protocol.configuration.ClientboundFinishConfigurationPacket;
 import net.minecraft.network.protocol.configuration.ClientboundRegistryDataPacket;
+import net.minecraft.network.protocol.configuration.ServerboundFinishConfigurationPacket;
 import net.minecraft.network.protocol.game.*;
+import net.minecraft.network.protocol.handshake.ClientIntent;
+import net.minecraft.network.protocol.handshake.ClientIntentionPacket;
+import net.minecraft.network.protocol.login.ClientboundLoginFinishedPacket;
+import net.minecraft.network.protocol.login.ServerboundLoginAcknowledgedPacket;
+import net.minecraft.network.syncher.EntityDataSerializer;
 import net.minecraft.network.syncher.EntityDataSerializers;
 import net.minecraft.network.syncher.SynchedEntityData;
 import net.minecraft.resources.Identifier;
 import net.minecraft.resources.ResourceKey;
 import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.level.ServerPlayer;
-import net.minecraft.server.network.ServerCommonPacketListenerImpl;
 import net.minecraft.server.network.ServerGamePacketListenerImpl;
+import net.minecraft.tags.TagNetworkSerialization;
 import net.minecraft.util.Mth;
+import net.minecraft.util.Util;
+import net.minecraft.world.BossEvent;
 import net.minecraft.world.entity.EntityType;
 import net.minecraft.world.entity.EquipmentSlot;
 import net.minecraft.world.entity.PositionMoveRotation;
-import net.minecraft.world.entity.Relative;
 import net.minecraft.world.entity.ai.attributes.AttributeInstance;
 import net.minecraft.world.entity.ai.attributes.Attributes;
 import net.minecraft.world.entity.player.Inventory;
+import net.minecraft.world.inventory.InventoryMenu;
 import net.minecraft.world.inventory.MenuType;
 import net.minecraft.world.item.Item;
 import net.minecraft.world.item.ItemStack;
@@ -71,20 +89,26 @@ import net.minecraft.world.item.Items;
 import net.minecraft.world.item.component.BlockItemStateProperties;
 import net.minecraft.world.item.component.Tool;
 import net.minecraft.world.item.crafting.RecipePropertySet;
-import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.item.crafting.SelectableRecipe;
+import net.minecraft.world.item.crafting.StonecutterRecipe;
+import net.minecraft.world.item.trading.ItemCost;
+import net.minecraft.world.item.trading.MerchantOffer;
+import net.minecraft.world.item.trading.MerchantOffers;
 import net.minecraft.world.level.GameType;
+import net.minecraft.world.level.Level;
 import net.minecraft.world.level.block.Block;
 import net.minecraft.world.level.block.Blocks;
 import net.minecraft.world.level.block.state.BlockState;
-import net.minecraft.world.level.block.state.properties.BlockStateProperties;
 import net.minecraft.world.level.chunk.*;
 import net.minecraft.world.level.dimension.DimensionType;
+import org.bukkit.configuration.file.FileConfiguration;
 import org.joml.Quaternionf;
-import org.joml.Quaternionfc;
 import org.joml.Vector3f;
-import org.joml.Vector3fc;
 
+import java.nio.channels.ClosedChannelException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentMap;
 
 public class PacketListener {
 
@@ -96,6 +120,55 @@ public class PacketListener {
     @SuppressWarnings("deprecation")
     private static final Holder.Reference<Block> RED_MUSHROOM_BLOCK_HOLDER = Blocks.RED_MUSHROOM_BLOCK.builtInRegistryHolder();
 
+    /**
+     * Makes the mushroom blocks used by the custom blocks take ages to break on the client, the server handles the mining
+     */
+    private static final Tool.Rule MUSHROOM_TOOL_RULE = new Tool.Rule(
+            HolderSet.direct(List.of(MUSHROOM_STEM_HOLDER, BROWN_MUSHROOM_BLOCK_HOLDER, RED_MUSHROOM_BLOCK_HOLDER)),
+            Optional.of(0.01F),
+            Optional.empty()
+    );
+    private static final Tool DEFAULT_CLIENT_TOOL = new Tool(List.of(MUSHROOM_TOOL_RULE), 1.0F, 1, true);
+    /**
+     * Client tools by server tool, items of a same type share the tool of their prototype so they are keyed by identity
+     */
+    private static final ConcurrentMap<Tool, Tool> CLIENT_TOOLS = new MapMaker().weakKeys().makeMap();
+    /**
+     * Client tools whose filtered tags are replaced by the blocks they hold, so the server can compute the client mining speed
+     */
+    private static final ConcurrentMap<Tool, Tool> CLIENT_MINING_TOOLS = new MapMaker().weakKeys().makeMap();
+
+    /**
+     * First hotbar slot of each menu type, the hotbar always comes after the container slots and the 27 other inventory slots
+     */
+    private static final Reference2IntOpenHashMap<MenuType<?>> HOTBAR_STARTS = Util.make(new Reference2IntOpenHashMap<>(), map -> {
+        map.defaultReturnValue(-1);
+        map.put(MenuType.GENERIC_9x1, 36);
+        map.put(MenuType.GENERIC_9x2, 45);
+        map.put(MenuType.GENERIC_9x3, 54);
+        map.put(MenuType.GENERIC_9x4, 63);
+        map.put(MenuType.GENERIC_9x5, 72);
+        map.put(MenuType.GENERIC_9x6, 81);
+        map.put(MenuType.GENERIC_3x3, 36);
+        map.put(MenuType.CRAFTER_3x3, 36);
+        map.put(MenuType.SHULKER_BOX, 54);
+        map.put(MenuType.BEACON, 28);
+        map.put(MenuType.ENCHANTMENT, 29);
+        map.put(MenuType.STONECUTTER, 29);
+        map.put(MenuType.ANVIL, 30);
+        map.put(MenuType.BLAST_FURNACE, 30);
+        map.put(MenuType.CARTOGRAPHY_TABLE, 30);
+        map.put(MenuType.FURNACE, 30);
+        map.put(MenuType.GRINDSTONE, 30);
+        map.put(MenuType.MERCHANT, 30);
+        map.put(MenuType.SMOKER, 30);
+        map.put(MenuType.LOOM, 31);
+        map.put(MenuType.SMITHING, 31);
+        map.put(MenuType.BREWING_STAND, 32);
+        map.put(MenuType.HOPPER, 32);
+        map.put(MenuType.CRAFTING, 37);
+    });
+
     private static final BlockItemStateProperties MUSHROOM_BLOCK_ITEM_STATE_PROPERTIES = new BlockItemStateProperties(Map.of(
             "down", "true",
             "east", "true",
@@ -105,56 +178,195 @@ public class PacketListener {
             "west", "true"
     ));
 
+    /**
+     * Rewriters of the packets read from the clients and written to them, built when the plugin is enabled
+     */
+    private static final PacketRewriterRegistry SERVERBOUND = Util.make(new PacketRewriterRegistry("serverbound"), PacketListener::registerServerbound);
+    private static final PacketRewriterRegistry CLIENTBOUND = Util.make(new PacketRewriterRegistry("clientbound"), PacketListener::registerClientbound);
+
+    public static void loadConfig(@NotNull FileConfiguration config) {
+        SERVERBOUND.loadConfig(config);
+        CLIENTBOUND.loadConfig(config);
+    }
+
+    public static @NotNull List<PacketRewriterRegistry> getRewriters() {
+        return List.of(SERVERBOUND, CLIENTBOUND);
+    }
+
+    /**
+     * The block updates of a bundle must be rebuilt with their client block states, as only the next encoded packet
+     * can be translated by {@link BlockStateEncoder} and the next one after a bundle is its delimiter.
+     * <p>
+     * The packets go through their own registry, so the rewriters are all enabled and the stats of {@link #CLIENTBOUND} are left untouched.
+     */
+    private static void bundleSelfTest() {
+        PacketRewriterRegistry registry = Util.make(new PacketRewriterRegistry("clientbound"), PacketListener::registerClientbound);
+        ChannelDupeHandler handler = new ChannelDupeHandler();
+        handler.hasBlockStateEncoder = true;
+        EmbeddedChannel channel = new EmbeddedChannel(handler);
+        try {
+            BlockState state = Blocks.MUSHROOM_STEM.defaultBlockState();
+            BlockState clientState = ClientBlockStates.get(state, true);
+            Object result = registry.rewrite(
+                    new ClientboundBundlePacket(List.of(new ClientboundBlockUpdatePacket(BlockPos.ZERO, state))),
+                    channel.pipeline().firstContext(),
+                    handler
+            );
+            boolean translated = clientState == null
+                    || result instanceof ClientboundBundlePacket bundle
+                    && bundle.subPackets().iterator().next() instanceof ClientboundBlockUpdatePacket blockUpdate
+                    && blockUpdate.getBlockState() == clientState;
+            if (handler.encodingLayout != null || !translated) {
+                throw new IllegalStateException("The block updates of a bundle are not sent with their client block states");
+            }
+        } catch (IllegalStateException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to rewrite a bundle of block updates", e);
+        } finally {
+            channel.finishAndReleaseAll();
+        }
+    }
+
     public static void inject() {
+        ChunkSectionTranscoder.selfTest();
+        BlockStateEncoder.selfTest();
+        bundleSelfTest();
         ChannelInitializeListenerHolder.addListener(
                 Key.key("lost_engine", "packet_listener"),
-                channel -> channel.pipeline().addBefore("packet_handler", "lost_engine_packet_listener", new ChannelDupeHandler())
+                channel -> {
+                    ChannelDupeHandler handler = new ChannelDupeHandler();
+                    channel.pipeline().addBefore("packet_handler", "lost_engine_packet_listener", handler);
+                    BlockStateEncoder.install(channel, handler);
+                }
         );
     }
 
     static class ChannelDupeHandler extends ChannelDuplexHandler {
         private ServerPlayer player;
         private boolean isWaitingForResourcePack = false;
-        private Boolean isBedrockClient = null;
+        /// Protocol of the packets read from the client
+        private ConnectionProtocol protocol = ConnectionProtocol.HANDSHAKING;
+        private @Nullable GameProfile profile = null;
         volatile byte slot = 0;
         volatile int sectionsCount = 0;
         volatile int minY = 0;
         volatile int maxY = 0;
-        private final Long2IntOpenHashMap customBlockStateCache = new Long2IntOpenHashMap();
-        final Int2ObjectOpenHashMap<CustomItem> paintingItems = new Int2ObjectOpenHashMap<>();
-        private Long locToSkip = null;
+        volatile @Nullable ResourceKey<Level> dimension = null;
+        /// Custom items of the painting variants sent to this connection, see {@link #getPaintingItem(int)}
+        private @Nullable List<CustomItem> paintingItems = null;
+        private int firstPaintingId = 0;
+        /// Update sending the not clickable block state of a custom block as is, it is matched by identity
+        /// so an update of the same position written before it is still translated
+        private @Nullable ClientboundBlockUpdatePacket notClickableUpdate = null;
+        private final ArrayDeque<PendingWrite> pendingWrites = new ArrayDeque<>();
+        /// Rewrite computed by {@link ChunkRewriteExecutor} for the chunk being written, applied by its rewriter
+        private @Nullable ChunkRewrite completedChunkRewrite = null;
+        private int pendingChunks = 0;
+        private boolean pendingFlush = false;
+        private boolean inChunkBatch = false;
+        private final BlockUpdateCoalescer blockUpdates = new BlockUpdateCoalescer();
+        private boolean blockUpdatesFlushScheduled = false;
+        private final ContainerContentShadow containerContents = new ContainerContentShadow();
+        boolean hasBlockStateEncoder = false;
+        /// Layout of the packet being written, read by {@link BlockStateEncoder} once vanilla encoded it
+        @Nullable BlockStateEncoder.Layout encodingLayout = null;
+        /// Whether the sub-packets of a bundle are being rewritten, they are encoded separately after the bundle delimiter
+        /// so they can't be translated while encoding
+        private boolean inBundle = false;
+        /// Whether the running rewriter changed its packet, see {@link #reportRewrite(boolean)}
+        byte rewriteReport = PacketRewriterRegistry.NOT_REPORTED;
 
         /**
-         * @return {@code Blocks.AIR.defaultBlockState()} if not in cache
+         * Reports whether the running rewriter changed its packet, for the rewriters that modify it in place
+         * or build a new one even when nothing changed
          */
-        private @NotNull BlockState getBlockState(long pos) {
-            return Block.stateById(customBlockStateCache.get(pos));
+        void reportRewrite(boolean changed) {
+            rewriteReport = changed ? PacketRewriterRegistry.CHANGED : PacketRewriterRegistry.UNCHANGED;
         }
 
-        private void removeCachedBlockStates(long pos) {
-            customBlockStateCache.remove(pos);
+        /**
+         * @return true if the block states of the packet being written will be translated by {@link BlockStateEncoder},
+         * in which case the packet must be written as is
+         */
+        private boolean translateWhileEncoding(@NotNull BlockStateEncoder.Layout layout) {
+            if (inBundle || !hasBlockStateEncoder || !BlockStateEncoder.isEnabled()) return false;
+            encodingLayout = layout;
+            return true;
+        }
+
+        /**
+         * Writes the result of the clientbound rewriters, {@link #encodingLayout} is only valid while this packet is encoded
+         */
+        private void writeClientbound(@NotNull ChannelHandlerContext ctx, @NotNull Object msg, @NotNull ChannelPromise promise) throws Exception {
+            try {
+                if (msg instanceof TranslatedPacket(Packet<?> translatedPacket)) {
+                    ctx.write(translatedPacket, promise);
+                    return;
+                }
+                Object packet = CLIENTBOUND.rewrite(msg, ctx, this);
+                if (packet != null) ctx.write(packet, promise);
+            } finally {
+                encodingLayout = null;
+            }
         }
 
-        private void setCustomBlockState(long pos, BlockState blockState) {
-            customBlockStateCache.put(pos, Block.getId(blockState));
+        /**
+         * @param paintingId the network id of a painting variant sent by the client
+         * @return the custom item of this painting variant or {@code null} if it is a vanilla one
+         */
+        @Nullable CustomItem getPaintingItem(int paintingId) {
+            List<CustomItem> items = paintingItems;
+            int index = paintingId - firstPaintingId;
+            return items != null && index >= 0 && index < items.size() ? items.get(index) : null;
         }
 
-        private boolean isBedrockClient(ChannelHandlerContext ctx) {
-            if (isBedrockClient != null) return isBedrockClient;
-            Channel channel = ctx.channel();
-            Connection connection = (Connection) channel.pipeline().get("packet_handler");
-            if (connection != null && connection.getPacketListener() instanceof ServerCommonPacketListenerImpl serverCommonPacketListener) {
-                isBedrockClient = BedrockUtils.isBedrockPlayer(serverCommonPacketListener.getOwner().id());
-                if (isBedrockClient) {
-                    LostEngine.logger().info("Bedrock client detected: {}", serverCommonPacketListener.getOwner().name());
+        /**
+         * Follows the protocol of the packets read from the client, the handlers a protocol doesn't need are removed
+         */
+        private void onServerbound(@NotNull ChannelHandlerContext ctx, @NotNull Object msg) {
+            switch (msg) {
+                // Nothing is rewritten for the server list pings
+                case ClientIntentionPacket packet when packet.intention() == ClientIntent.STATUS -> uninstall(ctx);
+                case ClientIntentionPacket ignored -> protocol = ConnectionProtocol.LOGIN;
+                case ServerboundLoginAcknowledgedPacket ignored -> protocol = ConnectionProtocol.CONFIGURATION;
+                case ServerboundFinishConfigurationPacket ignored -> {
+                    protocol = ConnectionProtocol.PLAY;
+                    // Checked again as Geyser may only know the player once it is logged in
+                    if (profile == null || !detectBedrockClient(ctx, profile)) BytePacketListener.install(ctx.pipeline(), this);
+                }
+                case ServerboundConfigurationAcknowledgedPacket ignored -> {
+                    protocol = ConnectionProtocol.CONFIGURATION;
+                    BytePacketListener.uninstall(ctx.pipeline());
+                }
+                default -> {
                 }
-                return isBedrockClient;
             }
-            return false;
+        }
+
+        /**
+         * Nothing is rewritten for the Bedrock players, so every LostEngine handler is removed once one is detected
+         *
+         * @return whether the handlers were removed
+         */
+        private boolean detectBedrockClient(@NotNull ChannelHandlerContext ctx, @NotNull GameProfile profile) {
+            if (!BedrockUtils.isBedrockPlayer(profile.id())) return false;
+            LostEngine.logger().info("Bedrock client detected: {}", profile.name());
+            // Detected before the play protocol at the latest, so no packet is waiting in this handler
+            uninstall(ctx);
+            return true;
+        }
+
+        private void uninstall(@NotNull ChannelHandlerContext ctx) {
+            ChannelPipeline pipeline = ctx.pipeline();
+            BytePacketListener.uninstall(pipeline);
+            BlockStateEncoder.uninstall(pipeline, this);
+            pipeline.remove(this);
         }
 
         @Nullable ServerPlayer getPlayer(ChannelHandlerContext ctx) {
-            if (player != null) return player;
+            // The game listener only exists in the play protocol
+            if (player != null || protocol != ConnectionProtocol.PLAY) return player;
             Channel channel = ctx.channel();
             Connection connection = (Connection) channel.pipeline().get("packet_handler");
             if (connection != null && connection.getPacketListener() instanceof ServerGamePacketListenerImpl serverGamePacketListener) {
@@ -165,499 +377,774 @@ public class PacketListener {
 
         @Override
         public void channelRead(@NotNull ChannelHandlerContext ctx, @NotNull Object msg) throws Exception {
-            Object packet = isBedrockClient(ctx) ? msg : serverbound(msg, ctx, this);
+            Object packet = SERVERBOUND.rewrite(msg, ctx, this);
             if (packet != null) {
                 super.channelRead(ctx, packet);
             }
+            onServerbound(ctx, msg);
         }
 
         @Override
         public void write(@NotNull ChannelHandlerContext ctx, @NotNull Object msg, @NotNull ChannelPromise promise) throws Exception {
-            Object packet = isBedrockClient(ctx) ? msg : clientbound(msg, ctx, this);
-            if (packet != null) {
-                super.write(ctx, packet, promise);
+            if (msg instanceof ClientboundLoginFinishedPacket(GameProfile gameProfile)) {
+                profile = gameProfile;
+                super.write(ctx, msg, promise);
+                detectBedrockClient(ctx, gameProfile);
+                return;
+            }
+            if (msg instanceof ClientboundChunkBatchStartPacket) {
+                inChunkBatch = true;
+            } else if (msg instanceof ClientboundChunkBatchFinishedPacket) {
+                inChunkBatch = false;
+            }
+            if (pendingWrites.isEmpty() && msg instanceof ClientboundBlockUpdatePacket packet && BlockUpdateCoalescer.isEnabled()
+                    && packet != notClickableUpdate) {
+                blockUpdates.add(packet, promise);
+                return;
             }
+            // The block updates were written before this packet
+            drainBlockUpdates(ctx);
+            if (inChunkBatch && sectionsCount > 0 && msg instanceof ClientboundLevelChunkWithLightPacket packet && ChunkRewriteExecutor.isEnabled()
+                    && pendingChunks < ChunkRewriteExecutor.getMaxPendingPerConnection() && CLIENTBOUND.isEnabled(ClientboundLevelChunkWithLightPacket.class)) {
+                ResourceKey<Level> dimension = this.dimension;
+                int sectionsCount = this.sectionsCount;
+                int minY = this.minY;
+                CompletableFuture<ChunkRewrite> future = ChunkRewriteExecutor.submit(() -> {
+                    long start = System.nanoTime();
+                    try {
+                        return computeChunkRewrite(packet, ctx.alloc(), dimension, sectionsCount, minY);
+                    } finally {
+                        CLIENTBOUND.addNanos(ClientboundLevelChunkWithLightPacket.class, System.nanoTime() - start);
+                    }
+                });
+                if (future != null) {
+                    pendingChunks++;
+                    pendingWrites.add(new PendingWrite(msg, promise, future));
+                    future.whenComplete((rewrite, throwable) -> ctx.executor().execute(() -> drainPendingWrites(ctx)));
+                    return;
+                }
+            }
+            if (!pendingWrites.isEmpty()) {
+                // Keep the original order, this packet will be processed once the chunks before it are rewritten
+                pendingWrites.add(new PendingWrite(msg, promise, null));
+                return;
+            }
+            writeClientbound(ctx, msg, promise);
         }
-    }
 
-    private static @MaybeNull Object serverbound(@NotNull Object msg, @NotNull ChannelHandlerContext ctx, @NotNull ChannelDupeHandler handler) {
-        switch (msg) {
-            case ServerboundSetCreativeModeSlotPacket packet -> {
-                ItemStack item = packet.itemStack();
-                Optional<ItemStack> newItem = editItemBackward(item);
-                if (newItem.isPresent()) {
-                    return new ServerboundSetCreativeModeSlotPacket(packet.slotNum(), newItem.get());
+        @Override
+        public void flush(@NotNull ChannelHandlerContext ctx) throws Exception {
+            if (!pendingWrites.isEmpty()) {
+                pendingFlush = true;
+                return;
+            }
+            if (!blockUpdates.isEmpty()) {
+                // Block updates usually come in bursts of tasks queued on the event loop,
+                // waiting for the end of the queued tasks lets the whole burst be coalesced
+                if (!blockUpdatesFlushScheduled) {
+                    blockUpdatesFlushScheduled = true;
+                    ctx.executor().execute(() -> {
+                        blockUpdatesFlushScheduled = false;
+                        if (!ctx.channel().isActive()) {
+                            blockUpdates.fail(new ClosedChannelException());
+                            return;
+                        }
+                        drainBlockUpdates(ctx);
+                        ctx.flush();
+                    });
                 }
+                return;
             }
-            case ServerboundContainerClickPacket packet -> {
-                return new ServerboundContainerClickPacket(
-                        packet.containerId(),
-                        packet.stateId(),
-                        packet.slotNum(),
-                        packet.buttonNum(),
-                        packet.clickType(),
-                        packet.changedSlots(),
-                        (stack, hashGenerator) -> packet.carriedItem().matches(editItem(stack, false).orElse(stack), hashGenerator)
-                );
+            super.flush(ctx);
+        }
+
+        @Override
+        public void handlerRemoved(@NotNull ChannelHandlerContext ctx) {
+            // The connection was closed before the buffered packets were written
+            ClosedChannelException cause = new ClosedChannelException();
+            blockUpdates.fail(cause);
+            PendingWrite pendingWrite;
+            while ((pendingWrite = pendingWrites.poll()) != null) {
+                pendingWrite.promise().tryFailure(cause);
             }
-            case ServerboundPlayerActionPacket packet -> {
-                ServerPlayer player = handler.getPlayer(ctx);
-                if (player == null) break;
-                if (player.gameMode.getGameModeForPlayer() != GameType.SURVIVAL) break;
-                if (packet.getAction() == ServerboundPlayerActionPacket.Action.START_DESTROY_BLOCK) {
-                    BlockState blockState = handler.getBlockState(packet.getPos().asLong());
-                    Optional<CustomBlock> customBlock = blockState.getBlock() instanceof CustomBlock obj ? Optional.of(obj) : Optional.empty();
-                    if (customBlock.isPresent() || blockState.getBlock() == Blocks.BROWN_MUSHROOM_BLOCK || blockState.getBlock() == Blocks.RED_MUSHROOM_BLOCK || blockState.getBlock() == Blocks.MUSHROOM_STEM) {
-                        //noinspection DataFlowIssue -- never get used
-                        if (blockState.getDestroyProgress(player, null, packet.getPos()) >= 1.0F) {
-                            ctx.channel().writeAndFlush(new ClientboundLevelEventPacket(2001, packet.getPos(), Block.getId(blockState), false));
-                            break;
-                        }
-                        customBlock.ifPresent(obj -> {
-                            if (obj.getNotClickableBlockState() != null) {
-                                handler.locToSkip = packet.getPos().asLong();
-                                ctx.channel().writeAndFlush(new ClientboundBlockUpdatePacket(packet.getPos(), obj.getClientBlockState()));
-                            }
-                        });
-                        float clientBlockDestroySpeed = getDestroySpeed(
-                                customBlock.isPresent() ?
-                                        customBlock.get().getClientBlockState() :
-                                        blockState,
-                                editItem(player.getInventory().getSelectedItem(), false).orElse(player.getInventory().getSelectedItem())
-                        );
-                        if (clientBlockDestroySpeed == 0) break;
-                        float blockDestroySpeed = getDestroySpeed(blockState, player.getInventory().getSelectedItem());
-                        if (blockDestroySpeed != clientBlockDestroySpeed) {
-                            AttributeInstance blockBreakSpeed = new AttributeInstance(Attributes.BLOCK_BREAK_SPEED, attributeInstance -> {
-                            });
-                            AttributeInstance playerAttribute = player.getAttribute(Attributes.BLOCK_BREAK_SPEED);
-                            if (playerAttribute != null) blockBreakSpeed.apply(playerAttribute.pack());
-                            // The ratio is between what the client actually knows and what the server thinks
-                            float ratio = blockDestroySpeed / clientBlockDestroySpeed;
-                            blockBreakSpeed.setBaseValue(ratio * blockBreakSpeed.getBaseValue());
-                            ctx.channel().writeAndFlush(new ClientboundUpdateAttributesPacket(player.getId(), List.of(blockBreakSpeed)));
-                        }
+            pendingChunks = 0;
+            pendingFlush = false;
+        }
+
+        private void drainBlockUpdates(@NotNull ChannelHandlerContext ctx) {
+            blockUpdates.drain(ctx, (packet, promise) -> writeClientbound(ctx, packet, promise));
+        }
+
+        /**
+         * Writes every pending packet whose chunk rewrite is done, in the order they were written
+         */
+        private void drainPendingWrites(@NotNull ChannelHandlerContext ctx) {
+            PendingWrite pendingWrite;
+            while ((pendingWrite = pendingWrites.peek()) != null && (pendingWrite.chunkRewrite() == null || pendingWrite.chunkRewrite().isDone())) {
+                pendingWrites.poll();
+                try {
+                    if (pendingWrite.chunkRewrite() != null) {
+                        pendingChunks--;
+                        completedChunkRewrite = pendingWrite.chunkRewrite().join();
                     }
-                } else if (packet.getAction() == ServerboundPlayerActionPacket.Action.ABORT_DESTROY_BLOCK ||
-                        packet.getAction() == ServerboundPlayerActionPacket.Action.STOP_DESTROY_BLOCK) {
-                    BlockState blockState = handler.getBlockState(packet.getPos().asLong());
-                    if (blockState.getBlock() instanceof CustomBlock || blockState.getBlock() == Blocks.BROWN_MUSHROOM_BLOCK || blockState.getBlock() == Blocks.RED_MUSHROOM_BLOCK || blockState.getBlock() == Blocks.MUSHROOM_STEM) {
-                        if (blockState.getBlock() instanceof CustomBlock customBlock) {
-                            if (customBlock.getNotClickableBlockState() != null) {
-                                ctx.channel().writeAndFlush(new ClientboundBlockUpdatePacket(packet.getPos(), blockState));
-                            }
+                    writeClientbound(ctx, pendingWrite.msg(), pendingWrite.promise());
+                } catch (Exception e) {
+                    pendingWrite.promise().tryFailure(e);
+                    ctx.fireExceptionCaught(e);
+                } finally {
+                    completedChunkRewrite = null;
+                }
+            }
+            if (pendingWrites.isEmpty() && pendingFlush) {
+                pendingFlush = false;
+                ctx.flush();
+            }
+        }
+    }
+
+    /**
+     * A packet waiting for the chunks written before it to be rewritten
+     *
+     * @param chunkRewrite the rewrite of this packet if it is a chunk rewritten by {@link ChunkRewriteExecutor}
+     */
+    private record PendingWrite(@NotNull Object msg, @NotNull ChannelPromise promise, @Nullable CompletableFuture<ChunkRewrite> chunkRewrite) {
+    }
+
+    /**
+     * A packet built by LostEngine that already has its client items. It is written through the channel so it keeps its order
+     * with the packets waiting in {@link ChannelDupeHandler}, which only unwraps it
+     */
+    private record TranslatedPacket(@NotNull Packet<?> packet) {
+    }
+
+    private static void registerServerbound(@NotNull PacketRewriterRegistry registry) {
+        registry.register(ServerboundSetCreativeModeSlotPacket.class, "set_creative_mode_slot", (packet, ctx, handler) -> {
+            ItemStack item = packet.itemStack();
+            Optional<ItemStack> newItem = editItemBackward(item);
+            if (newItem.isPresent()) {
+                return new ServerboundSetCreativeModeSlotPacket(packet.slotNum(), newItem.get());
+            }
+            return packet;
+        });
+        registry.register(ServerboundContainerClickPacket.class, "container_click", (packet, ctx, handler) -> new ServerboundContainerClickPacket(
+                packet.containerId(),
+                packet.stateId(),
+                packet.slotNum(),
+                packet.buttonNum(),
+                packet.clickType(),
+                packet.changedSlots(),
+                (stack, hashGenerator) -> matchesClientItem(packet.carriedItem(), stack, false, hashGenerator)
+        ));
+        registry.register(ServerboundPlayerActionPacket.class, "player_action", (packet, ctx, handler) -> {
+            ServerPlayer player = handler.getPlayer(ctx);
+            if (player == null) return packet;
+            if (player.gameMode.getGameModeForPlayer() != GameType.SURVIVAL) return packet;
+            if (packet.getAction() == ServerboundPlayerActionPacket.Action.START_DESTROY_BLOCK) {
+                BlockState blockState = CustomBlockIndex.get(player.level()).getBlockState(packet.getPos().asLong());
+                Optional<CustomBlock> customBlock = blockState.getBlock() instanceof CustomBlock obj ? Optional.of(obj) : Optional.empty();
+                if (customBlock.isPresent() || blockState.getBlock() == Blocks.BROWN_MUSHROOM_BLOCK || blockState.getBlock() == Blocks.RED_MUSHROOM_BLOCK || blockState.getBlock() == Blocks.MUSHROOM_STEM) {
+                    //noinspection DataFlowIssue -- never get used
+                    if (blockState.getDestroyProgress(player, null, packet.getPos()) >= 1.0F) {
+                        ctx.channel().writeAndFlush(new ClientboundLevelEventPacket(2001, packet.getPos(), Block.getId(blockState), false));
+                        return packet;
+                    }
+                    customBlock.ifPresent(obj -> {
+                        if (obj.getNotClickableBlockState() != null) {
+                            ClientboundBlockUpdatePacket notClickableUpdate = new ClientboundBlockUpdatePacket(packet.getPos(), obj.getClientBlockState());
+                            handler.notClickableUpdate = notClickableUpdate;
+                            ctx.channel().writeAndFlush(notClickableUpdate);
                         }
+                    });
+                    float clientBlockDestroySpeed = getDestroySpeed(
+                            customBlock.isPresent() ?
+                                    customBlock.get().getClientBlockState() :
+                                    blockState,
+                            toClientMiningItem(player.getInventory().getSelectedItem())
+                    );
+                    if (clientBlockDestroySpeed == 0) return packet;
+                    float blockDestroySpeed = getDestroySpeed(blockState, player.getInventory().getSelectedItem());
+                    if (blockDestroySpeed != clientBlockDestroySpeed) {
                         AttributeInstance blockBreakSpeed = new AttributeInstance(Attributes.BLOCK_BREAK_SPEED, attributeInstance -> {
                         });
                         AttributeInstance playerAttribute = player.getAttribute(Attributes.BLOCK_BREAK_SPEED);
-                        if (playerAttribute != null) {
-                            blockBreakSpeed.apply(playerAttribute.pack());
-                        }
+                        if (playerAttribute != null) blockBreakSpeed.apply(playerAttribute.pack());
+                        // The ratio is between what the client actually knows and what the server thinks
+                        float ratio = blockDestroySpeed / clientBlockDestroySpeed;
+                        blockBreakSpeed.setBaseValue(ratio * blockBreakSpeed.getBaseValue());
                         ctx.channel().writeAndFlush(new ClientboundUpdateAttributesPacket(player.getId(), List.of(blockBreakSpeed)));
                     }
                 }
-            }
-            case ServerboundResourcePackPacket(UUID ignored, ServerboundResourcePackPacket.Action action) -> {
-                if (handler.isWaitingForResourcePack && action == ServerboundResourcePackPacket.Action.SUCCESSFULLY_LOADED) {
-                    ctx.channel().writeAndFlush(ClientboundFinishConfigurationPacket.INSTANCE);
+            } else if (packet.getAction() == ServerboundPlayerActionPacket.Action.ABORT_DESTROY_BLOCK ||
+                    packet.getAction() == ServerboundPlayerActionPacket.Action.STOP_DESTROY_BLOCK) {
+                BlockState blockState = CustomBlockIndex.get(player.level()).getBlockState(packet.getPos().asLong());
+                if (blockState.getBlock() instanceof CustomBlock || blockState.getBlock() == Blocks.BROWN_MUSHROOM_BLOCK || blockState.getBlock() == Blocks.RED_MUSHROOM_BLOCK || blockState.getBlock() == Blocks.MUSHROOM_STEM) {
+                    if (blockState.getBlock() instanceof CustomBlock customBlock) {
+                        if (customBlock.getNotClickableBlockState() != null) {
+                            ctx.channel().writeAndFlush(new ClientboundBlockUpdatePacket(packet.getPos(), blockState));
+                        }
+                    }
+                    AttributeInstance blockBreakSpeed = new AttributeInstance(Attributes.BLOCK_BREAK_SPEED, attributeInstance -> {
+                    });
+                    AttributeInstance playerAttribute = player.getAttribute(Attributes.BLOCK_BREAK_SPEED);
+                    if (playerAttribute != null) {
+                        blockBreakSpeed.apply(playerAttribute.pack());
+                    }
+                    ctx.channel().writeAndFlush(new ClientboundUpdateAttributesPacket(player.getId(), List.of(blockBreakSpeed)));
                 }
             }
-            case ServerboundSetCarriedItemPacket packet -> {
-                if (handler.isBedrockClient) break;
-                ServerPlayer player = handler.getPlayer(ctx);
-                if (player == null || player.isImmobile()) break;
-                byte slot = (byte) packet.getSlot();
-                if (slot < 0 || slot >= player.getInventory().getContainerSize()) break;
-                processNewSlot(handler.slot, slot, player);
-                handler.slot = slot;
+            return packet;
+        });
+        registry.register(ServerboundResourcePackPacket.class, "resource_pack", (packet, ctx, handler) -> {
+            if (handler.isWaitingForResourcePack && packet.action() == ServerboundResourcePackPacket.Action.SUCCESSFULLY_LOADED) {
+                ctx.channel().writeAndFlush(ClientboundFinishConfigurationPacket.INSTANCE);
+            }
+            return packet;
+        });
+        registry.register(ServerboundSetCarriedItemPacket.class, "set_carried_item", (packet, ctx, handler) -> {
+            ServerPlayer player = handler.getPlayer(ctx);
+            if (player == null || player.isImmobile()) return packet;
+            byte slot = (byte) packet.getSlot();
+            if (slot < 0 || slot >= player.getInventory().getContainerSize()) return packet;
+            processNewSlot(handler.slot, slot, player, ctx);
+            handler.slot = slot;
+            return packet;
+        });
+    }
+
+    private static void registerClientbound(@NotNull PacketRewriterRegistry registry) {
+        registry.register(ClientboundLoginPacket.class, "login", (packet, ctx, handler) -> {
+            processCommonPlayerSpawnInfo(packet.commonPlayerSpawnInfo(), handler);
+            return packet;
+        });
+        registry.register(ClientboundRespawnPacket.class, "respawn", (packet, ctx, handler) -> {
+            processCommonPlayerSpawnInfo(packet.commonPlayerSpawnInfo(), handler);
+            return packet;
+        });
+        registry.register(ClientboundSetPlayerInventoryPacket.class, "set_player_inventory", (packet, ctx, handler) -> {
+            int slot = packet.slot();
+            ServerPlayer player = handler.getPlayer(ctx);
+            Optional<ItemStack> newItem = editItem(packet.contents(), slot == Inventory.SLOT_OFFHAND || player != null && slot == player.getInventory().getSelectedSlot());
+            if (newItem.isPresent()) {
+                return new ClientboundSetPlayerInventoryPacket(slot, newItem.get());
+            }
+            return packet;
+        });
+        registry.register(ClientboundBlockUpdatePacket.class, "block_update", (packet, ctx, handler) -> {
+            if (packet == handler.notClickableUpdate) {
+                handler.notClickableUpdate = null;
+                return packet;
             }
-            default -> {
+            ResourceKey<Level> dimension = handler.dimension;
+            if (dimension != null) {
+                ChunkPacketCache.invalidate(dimension, SectionPos.blockToSectionCoord(packet.getPos().getX()), SectionPos.blockToSectionCoord(packet.getPos().getZ()));
+                CustomBlockIndex.get(dimension).onBlockSent(packet.getPos().asLong(), packet.blockState);
             }
-        }
-        return msg;
-    }
-
-    private static @MaybeNull Object clientbound(@NotNull Object msg, @NotNull ChannelHandlerContext ctx, @NotNull ChannelDupeHandler handler) throws Exception {
-        switch (msg) {
-            case ClientboundLoginPacket packet -> processCommonPlayerSpawnInfo(packet.commonPlayerSpawnInfo(), handler);
-            case ClientboundRespawnPacket packet ->
-                    processCommonPlayerSpawnInfo(packet.commonPlayerSpawnInfo(), handler);
-            case ClientboundForgetLevelChunkPacket(ChunkPos pos) -> {
-                for (int x = pos.getMinBlockX(); x <= pos.getMaxBlockX(); x++) {
-                    for (int y = handler.minY; y <= handler.maxY; y++) {
-                        for (int z = pos.getMinBlockZ(); z <= pos.getMaxBlockZ(); z++) {
-                            handler.removeCachedBlockStates(BlockPos.asLong(x, y, z));
-                        }
+            if (handler.translateWhileEncoding(BlockStateEncoder.Layout.BLOCK_UPDATE)) return packet;
+            BlockState newBlockState = ClientBlockStates.get(packet.blockState, true);
+            if (newBlockState != null) {
+                return new ClientboundBlockUpdatePacket(packet.getPos(), newBlockState);
+            }
+            return packet;
+        });
+        registry.register(ClientboundSectionBlocksUpdatePacket.class, "section_blocks_update", (packet, ctx, handler) -> {
+            try {
+                BlockState[] blockStates = ReflectionUtils.getBlockStates(packet);
+                SectionPos sectionPos = ReflectionUtils.getSectionPos(packet);
+                short[] positions = ReflectionUtils.getPositions(packet);
+                if (blockStates.length != positions.length) {
+                    throw new IllegalStateException("BlockStates length does not match Positions length in ClientboundSectionBlocksUpdatePacket");
+                }
+                ResourceKey<Level> dimension = handler.dimension;
+                CustomBlockIndex index = null;
+                if (dimension != null) {
+                    ChunkPacketCache.invalidate(dimension, sectionPos.x(), sectionPos.z());
+                    index = CustomBlockIndex.get(dimension);
+                }
+                boolean translateWhileEncoding = handler.translateWhileEncoding(BlockStateEncoder.Layout.SECTION_BLOCKS_UPDATE);
+                boolean changed = false;
+                for (int i = 0; i < blockStates.length; i++) {
+                    if (index != null) index.onBlockSent(sectionPos.relativeToBlockPos(positions[i]).asLong(), blockStates[i]);
+                    if (translateWhileEncoding) continue;
+                    BlockState newBlockState = ClientBlockStates.get(blockStates[i], true);
+                    if (newBlockState != null) {
+                        blockStates[i] = newBlockState;
+                        changed = true;
                     }
                 }
+                if (changed) ReflectionUtils.setBlockStates(packet, blockStates);
+                handler.reportRewrite(changed);
+            } catch (Exception e) {
+                throw new RuntimeException("Failed to update block states via reflection in ClientboundSectionBlocksUpdatePacket", e);
             }
-            case ClientboundSetPlayerInventoryPacket(int slot, ItemStack contents) -> {
-                ServerPlayer player = handler.getPlayer(ctx);
-                Optional<ItemStack> newItem = editItem(contents, slot == Inventory.SLOT_OFFHAND || player != null && slot == player.getInventory().getSelectedSlot());
-                if (newItem.isPresent()) {
-                    return new ClientboundSetPlayerInventoryPacket(slot, newItem.get());
-                }
+            return packet;
+        });
+        registry.register(ClientboundLevelChunkWithLightPacket.class, "level_chunk_with_light", (packet, ctx, handler) -> {
+            ChunkRewrite completedChunkRewrite = handler.completedChunkRewrite;
+            if (completedChunkRewrite != null) {
+                handler.reportRewrite(applyChunkRewrite(packet, completedChunkRewrite));
+            } else {
+                handler.reportRewrite(handler.sectionsCount > 0 && processChunkPacket(packet, ctx, handler));
             }
-            case ClientboundBlockUpdatePacket packet -> {
-                if (handler.locToSkip != null && handler.locToSkip == packet.getPos().asLong()) {
-                    handler.locToSkip = null;
-                    break;
+            return packet;
+        });
+        registry.register(ClientboundContainerSetContentPacket.class, "container_set_content", (packet, ctx, handler) -> {
+            int selectedMenuSlot = getSelectedMenuSlot(packet.containerId(), handler.getPlayer(ctx));
+            List<ItemStack> items = handler.containerContents.toClientItems(
+                    packet.containerId(),
+                    packet.items(),
+                    slot -> isIsDynamicMaterial(packet.containerId(), slot, selectedMenuSlot)
+            );
+            Optional<ItemStack> carriedItem = editItem(packet.carriedItem(), false);
+            if (items == packet.items() && carriedItem.isEmpty()) return packet;
+            return new ClientboundContainerSetContentPacket(packet.containerId(), packet.stateId(), items, carriedItem.orElseGet(packet::carriedItem));
+        });
+        registry.register(ClientboundContainerSetSlotPacket.class, "container_set_slot", (packet, ctx, handler) -> {
+            ServerPlayer player = handler.getPlayer(ctx);
+            ItemStack item = packet.getItem();
+            Optional<ItemStack> newItem = editItem(item, isIsDynamicMaterial(packet.getContainerId(), player, packet.getSlot()));
+            newItem.ifPresent(itemStack -> {
+                try {
+                    ReflectionUtils.setItemStack(packet, itemStack);
+                } catch (Exception e) {
+                    throw new RuntimeException("Failed to update item via reflection in ClientboundContainerSetSlotPacket", e);
                 }
-                Optional<BlockState> newBlockState = getClientBlockState(packet.blockState, true);
-                if (newBlockState.isPresent()) {
-                    if (packet.blockState.getBlock() instanceof CustomBlock)
-                        handler.setCustomBlockState(packet.getPos().asLong(), packet.blockState);
-                    return new ClientboundBlockUpdatePacket(packet.getPos(), newBlockState.get());
-                } else {
-                    handler.removeCachedBlockStates(packet.getPos().asLong());
+            });
+            handler.reportRewrite(newItem.isPresent());
+            return packet;
+        });
+        registry.register(ClientboundSetEquipmentPacket.class, "set_equipment", (packet, ctx, handler) -> {
+            List<Pair<EquipmentSlot, ItemStack>> items = new ObjectArrayList<>(packet.getSlots());
+            boolean requiresEdit = false;
+            for (int i = 0; i < items.size(); i++) {
+                ItemStack item = items.get(i).getSecond();
+                Optional<ItemStack> newItem = editItem(item, false);
+                if (newItem.isPresent()) {
+                    items.set(i, Pair.of(items.get(i).getFirst(), newItem.get()));
+                    requiresEdit = true;
                 }
             }
-            case ClientboundSectionBlocksUpdatePacket packet -> {
+            if (requiresEdit) {
                 try {
-                    BlockState[] blockStates = ReflectionUtils.getBlockStates(packet);
-                    SectionPos sectionPos = ReflectionUtils.getSectionPos(packet);
-                    short[] positions = ReflectionUtils.getPositions(packet);
-                    if (blockStates.length != positions.length) {
-                        throw new IllegalStateException("BlockStates length does not match Positions length in ClientboundSectionBlocksUpdatePacket");
-                    }
-                    for (int i = 0; i < blockStates.length; i++) {
-                        Optional<BlockState> newBlockState = getClientBlockState(blockStates[i], true);
-                        if (newBlockState.isPresent()) {
-                            if (blockStates[i].getBlock() instanceof CustomBlock)
-                                handler.setCustomBlockState(sectionPos.relativeToBlockPos(positions[i]).asLong(), blockStates[i]);
-                            blockStates[i] = newBlockState.get();
-                        } else {
-                            handler.removeCachedBlockStates(sectionPos.relativeToBlockPos(positions[i]).asLong());
-                        }
-                    }
-                    ReflectionUtils.setBlockStates(packet, blockStates);
+                    ReflectionUtils.setEquipmentSlots(packet, items);
                 } catch (Exception e) {
-                    throw new RuntimeException("Failed to update block states via reflection in ClientboundSectionBlocksUpdatePacket", e);
+                    throw new RuntimeException("Failed to update equipment slots via reflection in ClientboundSetEquipmentPacket", e);
                 }
             }
-            case ClientboundLevelChunkWithLightPacket packet -> {
-                ClientboundLevelChunkPacketData chunkData = packet.getChunkData();
-                if (handler.sectionsCount <= 0) break;
-                processChunkPacket(packet.getX(), packet.getZ(), chunkData, handler.sectionsCount, handler.minY, handler.customBlockStateCache);
+            handler.reportRewrite(requiresEdit);
+            return packet;
+        });
+        registry.register(ClientboundMerchantOffersPacket.class, "merchant_offers", (packet, ctx, handler) -> {
+            MerchantOffers offers = new MerchantOffers();
+            boolean changed = false;
+            for (MerchantOffer offer : packet.getOffers()) {
+                MerchantOffer clientOffer = toClientOffer(offer);
+                changed |= clientOffer.getItemCostA() != offer.getItemCostA()
+                        || clientOffer.getItemCostB().orElse(null) != offer.getItemCostB().orElse(null)
+                        || clientOffer.getResult() != offer.getResult();
+                offers.add(clientOffer);
             }
-            case ClientboundContainerSetContentPacket packet -> {
-                ServerPlayer player = handler.getPlayer(ctx);
-                List<ItemStack> items = new ObjectArrayList<>(packet.items());
-                boolean requiresEdit = false;
-                for (int i = 0; i < items.size(); i++) {
-
-                    ItemStack item = items.get(i);
-                    Optional<ItemStack> newItem = editItem(item, isIsDynamicMaterial(packet.containerId(), player, i));
-
-                    if (newItem.isPresent()) {
-                        requiresEdit = true;
-                        items.set(i, newItem.get());
-                    }
-                }
-                Optional<ItemStack> carriedItem = editItem(packet.carriedItem(), false);
-                if (requiresEdit || carriedItem.isPresent()) {
-                    return new ClientboundContainerSetContentPacket(packet.containerId(), packet.stateId(), items, carriedItem.orElseGet(packet::carriedItem));
-                }
+            if (!changed) return packet;
+            return new ClientboundMerchantOffersPacket(packet.getContainerId(), offers, packet.getVillagerLevel(), packet.getVillagerXp(), packet.showProgress(), packet.canRestock());
+        });
+        registry.register(ClientboundSetCursorItemPacket.class, "set_cursor_item", (packet, ctx, handler) -> {
+            Optional<ItemStack> newItem = editItem(packet.contents(), false);
+            if (newItem.isPresent()) {
+                return new ClientboundSetCursorItemPacket(newItem.get());
             }
-            case ClientboundContainerSetSlotPacket packet -> {
-                ServerPlayer player = handler.getPlayer(ctx);
-                ItemStack item = packet.getItem();
-                Optional<ItemStack> newItem = editItem(item, isIsDynamicMaterial(packet.getContainerId(), player, packet.getSlot()));
-                newItem.ifPresent(itemStack -> {
-                    try {
-                        ReflectionUtils.setItemStack(packet, itemStack);
-                    } catch (Exception e) {
-                        throw new RuntimeException("Failed to update item via reflection in ClientboundContainerSetSlotPacket", e);
-                    }
-                });
+            return packet;
+        });
+        registry.register(ClientboundSystemChatPacket.class, "system_chat", (packet, ctx, handler) -> {
+            Component newContent = ClientComponents.toClient(packet.content());
+            if (newContent != packet.content()) {
+                return new ClientboundSystemChatPacket(newContent, packet.overlay());
             }
-            case ClientboundSetEquipmentPacket packet -> {
-                List<Pair<EquipmentSlot, ItemStack>> items = new ObjectArrayList<>(packet.getSlots());
-                boolean requiresEdit = false;
-                for (int i = 0; i < items.size(); i++) {
-                    ItemStack item = items.get(i).getSecond();
-                    Optional<ItemStack> newItem = editItem(item, false);
-                    if (newItem.isPresent()) {
-                        items.set(i, Pair.of(items.get(i).getFirst(), newItem.get()));
-                        requiresEdit = true;
-                    }
-                }
-                if (requiresEdit) {
-                    try {
-                        ReflectionUtils.setEquipmentSlots(packet, items);
-                    } catch (Exception e) {
-                        throw new RuntimeException("Failed to update equipment slots via reflection in ClientboundSetEquipmentPacket", e);
-                    }
-                }
+            return packet;
+        });
+        registry.register(ClientboundPlayerChatPacket.class, "player_chat", (packet, ctx, handler) -> {
+            Component unsignedContent = ClientComponents.toClientNullable(packet.unsignedContent());
+            ChatType.Bound chatType = ClientComponents.toClient(packet.chatType());
+            if (unsignedContent != packet.unsignedContent() || chatType != packet.chatType()) {
+                return new ClientboundPlayerChatPacket(
+                        packet.globalIndex(),
+                        packet.sender(),
+                        packet.index(),
+                        packet.signature(),
+                        packet.body(),
+                        unsignedContent,
+                        packet.filterMask(),
+                        chatType
+                );
             }
-            case ClientboundSetCursorItemPacket(ItemStack contents) -> {
-                Optional<ItemStack> newItem = editItem(contents, false);
-                if (newItem.isPresent()) {
-                    return new ClientboundSetCursorItemPacket(newItem.get());
-                }
+            return packet;
+        });
+        registry.register(ClientboundDisguisedChatPacket.class, "disguised_chat", (packet, ctx, handler) -> {
+            Component newMessage = ClientComponents.toClient(packet.message());
+            ChatType.Bound newChatType = ClientComponents.toClient(packet.chatType());
+            if (newMessage != packet.message() || newChatType != packet.chatType()) {
+                return new ClientboundDisguisedChatPacket(newMessage, newChatType);
             }
-            case ClientboundSystemChatPacket(Component content, boolean overlay) -> {
-                // Using JSON is the best way I found it might not be optimized, but if we don't do anything, it would kick the player
-                JsonElement component = JsonParser.parseString(componentToJson(content));
-                JsonElement newComponent = replaceLostEngineHoverItems(component.deepCopy());
-                if (!newComponent.equals(component)) {
-                    return new ClientboundSystemChatPacket(jsonToComponent(newComponent.toString()), overlay);
-                }
+            return packet;
+        });
+        registry.register(ClientboundSetTitleTextPacket.class, "set_title_text", (packet, ctx, handler) -> {
+            Component newText = ClientComponents.toClient(packet.text());
+            return newText != packet.text() ? new ClientboundSetTitleTextPacket(newText) : packet;
+        });
+        registry.register(ClientboundSetSubtitleTextPacket.class, "set_subtitle_text", (packet, ctx, handler) -> {
+            Component newText = ClientComponents.toClient(packet.text());
+            return newText != packet.text() ? new ClientboundSetSubtitleTextPacket(newText) : packet;
+        });
+        registry.register(ClientboundSetActionBarTextPacket.class, "set_action_bar_text", (packet, ctx, handler) -> {
+            Component newText = ClientComponents.toClient(packet.text());
+            return newText != packet.text() ? new ClientboundSetActionBarTextPacket(newText) : packet;
+        });
+        registry.register(ClientboundTabListPacket.class, "tab_list", (packet, ctx, handler) -> {
+            Component newHeader = ClientComponents.toClient(packet.header());
+            Component newFooter = ClientComponents.toClient(packet.footer());
+            return newHeader != packet.header() || newFooter != packet.footer() ? new ClientboundTabListPacket(newHeader, newFooter) : packet;
+        });
+        registry.register(ClientboundSetScorePacket.class, "set_score", (packet, ctx, handler) -> {
+            Optional<Component> newDisplay = ClientComponents.toClient(packet.display());
+            if (newDisplay != packet.display()) {
+                return new ClientboundSetScorePacket(packet.owner(), packet.objectiveName(), packet.score(), newDisplay, packet.numberFormat());
             }
-            case ClientboundSetEntityDataPacket(int id, List<SynchedEntityData.DataValue<?>> packedItems) -> {
-                ObjectArrayList<SynchedEntityData.DataValue<?>> newItems = new ObjectArrayList<>(packedItems);
-                boolean requiresEdit = false;
-                ItemStack itemStack = CustomThrownTrident.CUSTOM_TRIDENTS.get(id);
-                if (itemStack != null) {
-                    newItems.removeIf(dataValue -> {
-                        if (dataValue.id() == 10 && dataValue.value() instanceof Integer) return false;
-                        if (dataValue.id() == 11 && dataValue.value() instanceof Vector3fc) return false;
-                        if (dataValue.id() == 12 && dataValue.value() instanceof Vector3fc) return false;
-                        if (dataValue.id() == 13 && dataValue.value() instanceof Quaternionfc) return false;
-                        if (dataValue.id() == 23 && dataValue.value() instanceof ItemStack) return false;
-                        if (dataValue.id() == 24 && dataValue.value() instanceof Byte) return false;
-                        return dataValue.id() >= 8;
-                    });
-                    requiresEdit = true;
-                }
-                for (int i = 0; i < newItems.size(); i++) {
-                    SynchedEntityData.DataValue<?> dataValue = newItems.get(i);
-                    if (dataValue.value() instanceof ItemStack item) {
-                        Optional<ItemStack> newItem = editItem(item, false);
-                        if (newItem.isPresent()) {
-                            requiresEdit = true;
-                            newItems.set(i, new SynchedEntityData.DataValue<>(dataValue.id(), EntityDataSerializers.ITEM_STACK, newItem.get()));
-                        }
-                    } else if (dataValue.value() instanceof BlockState blockState) {
-                        Optional<BlockState> newBlockState = getClientBlockState(blockState, false);
-                        if (newBlockState.isPresent()) {
-                            requiresEdit = true;
-                            newItems.set(i, new SynchedEntityData.DataValue<>(dataValue.id(), EntityDataSerializers.BLOCK_STATE, newBlockState.get()));
-                        }
-                    }
-                }
-                if (newItems.isEmpty()) return null;
-                if (requiresEdit) {
-                    return new ClientboundSetEntityDataPacket(id, newItems);
+            return packet;
+        });
+        registry.register(ClientboundBossEventPacket.class, "boss_event", (packet, ctx, handler) -> {
+            ClientboundBossEventPacket newPacket = toClientBossEvent(packet);
+            return newPacket != null ? newPacket : packet;
+        });
+        registry.register(ClientboundSetEntityDataPacket.class, "set_entity_data", (packet, ctx, handler) -> {
+            int id = packet.id();
+            List<SynchedEntityData.DataValue<?>> packedItems = packet.packedItems();
+            boolean customTrident = CustomThrownTrident.CUSTOM_TRIDENTS.containsKey(id);
+            // Only allocated once a value changes
+            List<SynchedEntityData.DataValue<?>> newItems = null;
+            for (int i = 0, size = packedItems.size(); i < size; i++) {
+                SynchedEntityData.DataValue<?> dataValue = packedItems.get(i);
+                SynchedEntityData.DataValue<?> newValue = customTrident && !isItemDisplayData(dataValue) ? null : toClientDataValue(dataValue);
+                if (newItems == null && newValue != dataValue) {
+                    newItems = new ObjectArrayList<>(size);
+                    newItems.addAll(packedItems.subList(0, i));
                 }
+                if (newItems != null && newValue != null) newItems.add(newValue);
             }
-            case ClientboundLevelParticlesPacket packet -> {
-                if (packet.getParticle() instanceof ItemParticleOption particle) {
-                    Optional<ItemStack> newItem = editItem(particle.getItem(), false);
-                    if (newItem.isPresent()) {
-                        return new ClientboundLevelParticlesPacket(
-                                new ItemParticleOption(particle.getType(), newItem.get()),
-                                packet.isOverrideLimiter(),
-                                packet.alwaysShow(),
-                                packet.getX(),
-                                packet.getY(),
-                                packet.getZ(),
-                                packet.getXDist(),
-                                packet.getYDist(),
-                                packet.getZDist(),
-                                packet.getMaxSpeed(),
-                                packet.getCount()
-                        );
-                    }
-                } else if (packet.getParticle() instanceof BlockParticleOption particle) {
-                    BlockState blockState = particle.getState();
-                    Optional<BlockState> newBlockState = getClientBlockState(blockState, false);
-                    if (newBlockState.isPresent()) {
-                        return new ClientboundLevelParticlesPacket(
-                                new BlockParticleOption(particle.getType(), newBlockState.get()),
-                                packet.isOverrideLimiter(),
-                                packet.alwaysShow(),
-                                packet.getX(),
-                                packet.getY(),
-                                packet.getZ(),
-                                packet.getXDist(),
-                                packet.getYDist(),
-                                packet.getZDist(),
-                                packet.getMaxSpeed(),
-                                packet.getCount()
-                        );
-                    }
+            if ((newItems != null ? newItems : packedItems).isEmpty()) return null;
+            if (newItems != null) {
+                return new ClientboundSetEntityDataPacket(id, newItems);
+            }
+            return packet;
+        });
+        registry.register(ClientboundLevelParticlesPacket.class, "level_particles", (packet, ctx, handler) -> {
+            if (packet.getParticle() instanceof ItemParticleOption particle) {
+                Optional<ItemStack> newItem = editItem(particle.getItem(), false);
+                if (newItem.isPresent()) {
+                    return new ClientboundLevelParticlesPacket(
+                            new ItemParticleOption(particle.getType(), newItem.get()),
+                            packet.isOverrideLimiter(),
+                            packet.alwaysShow(),
+                            packet.getX(),
+                            packet.getY(),
+                            packet.getZ(),
+                            packet.getXDist(),
+                            packet.getYDist(),
+                            packet.getZDist(),
+                            packet.getMaxSpeed(),
+                            packet.getCount()
+                    );
+                }
+            } else if (packet.getParticle() instanceof BlockParticleOption particle) {
+                BlockState blockState = particle.getState();
+                BlockState newBlockState = ClientBlockStates.get(blockState, false);
+                if (newBlockState != null) {
+                    return new ClientboundLevelParticlesPacket(
+                            new BlockParticleOption(particle.getType(), newBlockState),
+                            packet.isOverrideLimiter(),
+                            packet.alwaysShow(),
+                            packet.getX(),
+                            packet.getY(),
+                            packet.getZ(),
+                            packet.getXDist(),
+                            packet.getYDist(),
+                            packet.getZDist(),
+                            packet.getMaxSpeed(),
+                            packet.getCount()
+                    );
                 }
             }
-            case ClientboundBundlePacket packet -> {
-                List<Packet<? super ClientGamePacketListener>> packets = new ObjectArrayList<>();
+            return packet;
+        });
+        registry.register(ClientboundBundlePacket.class, "bundle", (packet, ctx, handler) -> {
+            List<Packet<? super ClientGamePacketListener>> packets = new ObjectArrayList<>();
+            boolean changed = false;
+            handler.inBundle = true;
+            try {
                 for (Packet<?> subPacket : packet.subPackets()) {
-                    Object newPacket = clientbound(subPacket, ctx, handler);
+                    Object newPacket = registry.rewrite(subPacket, ctx, handler);
+                    changed |= newPacket != subPacket;
                     if (newPacket instanceof Packet<?>) {
                         @SuppressWarnings("unchecked")
                         Packet<? super ClientGamePacketListener> newPacketCasted = (Packet<? super ClientGamePacketListener>) newPacket;
                         packets.add(newPacketCasted);
                     }
                 }
-                if (packets.isEmpty()) return null;
-                return new ClientboundBundlePacket(packets);
-            }
-            case ClientboundLevelEventPacket packet -> {
-                if (packet.getType() == 2001 || packet.getType() == 3008) { // Block break event and Block finished brushing
-                    int data = packet.getData();
-                    Block block = Block.stateById(data).getBlock();
-                    Optional<BlockState> newBlockState = getClientBlockState(block.defaultBlockState(), false);
-                    if (newBlockState.isPresent()) {
-                        return new ClientboundLevelEventPacket(
-                                packet.getType(),
-                                packet.getPos(),
-                                Block.getId(newBlockState.get()),
-                                packet.isGlobalEvent()
-                        );
-                    }
-                }
+            } finally {
+                handler.inBundle = false;
             }
-            case ClientboundFinishConfigurationPacket ignored -> {
-                if (handler.isWaitingForResourcePack) {
-                    handler.isWaitingForResourcePack = false;
-                    break; // Avoid sending it twice
+            if (packets.isEmpty()) return null;
+            // The sub-packets modified in place are counted by their own rewriter
+            if (!changed) return packet;
+            return new ClientboundBundlePacket(packets);
+        });
+        registry.register(ClientboundLevelEventPacket.class, "level_event", (packet, ctx, handler) -> {
+            if (packet.getType() == 2001 || packet.getType() == 3008) { // Block break event and Block finished brushing
+                if (handler.translateWhileEncoding(BlockStateEncoder.Layout.LEVEL_EVENT)) return packet;
+                int newData = ClientBlockStates.getBlockEventClientId(packet.getData());
+                if (newData != ClientBlockStates.UNCHANGED) {
+                    return new ClientboundLevelEventPacket(
+                            packet.getType(),
+                            packet.getPos(),
+                            newData,
+                            packet.isGlobalEvent()
+                    );
                 }
-                if (LostEngine.getResourcePackUrl() == null) break;
-                handler.isWaitingForResourcePack = true;
-                var temp = new ClientboundResourcePackPushPacket(
-                        LostEngine.getResourcePackUUID(),
-                        LostEngine.getResourcePackUrl(),
-                        LostEngine.getResourcePackHash(),
-                        true,
-                        Optional.of(Component.literal(LostEngine.getInstance().getConfig().getString("pack_hosting.resource_pack_prompt", "Prompt")))
-                );
-                LostEngine.logger().info(temp.toString());
-                return temp;
-            }
-            case ClientboundSetHeldSlotPacket(int slot) -> {
-                if (handler.isBedrockClient) break;
-                ServerPlayer player = handler.getPlayer(ctx);
-                if (player == null) break;
-                processNewSlot(handler.slot, (byte) slot, player);
-                handler.slot = (byte) slot;
             }
-            case ClientboundUpdateRecipesPacket packet -> {
-                try {
-                    for (Map.Entry<ResourceKey<RecipePropertySet>, RecipePropertySet> entry : packet.itemSets().entrySet()) {
-                        Set<Holder<Item>> oldItems = ReflectionUtils.getItems(entry.getValue());
-                        Set<Holder<Item>> newItems = new ObjectOpenHashSet<>(oldItems);
-                        newItems.removeIf(item -> item.value().asItem() instanceof CustomItem);
-                        if (oldItems.size() != newItems.size())
-                            ReflectionUtils.setItems(entry.getValue(), newItems);
-                    }
-                } catch (Exception e) {
-                    throw new RuntimeException("Failed to update items via reflection in ClientboundUpdateRecipesPacket", e);
-                }
+            return packet;
+        });
+        registry.register(ClientboundFinishConfigurationPacket.class, "finish_configuration", (packet, ctx, handler) -> {
+            if (handler.isWaitingForResourcePack) {
+                handler.isWaitingForResourcePack = false;
+                return packet; // Avoid sending it twice
             }
-            case ClientboundAddEntityPacket packet -> {
-                if (packet.getType() != EntityType.TRIDENT) break;
-                ItemStack itemStack = CustomThrownTrident.CUSTOM_TRIDENTS.get(packet.getId());
-                if (itemStack != null) {
-                    ObjectArrayList<SynchedEntityData.DataValue<?>> packedItems = new ObjectArrayList<>();
-                    packedItems.add(new SynchedEntityData.DataValue<>(10, EntityDataSerializers.INT, 1));
-                    packedItems.add(new SynchedEntityData.DataValue<>(11, EntityDataSerializers.VECTOR3, new Vector3f(0, -0.03125f, 0.6875f)));
-                    packedItems.add(new SynchedEntityData.DataValue<>(12, EntityDataSerializers.VECTOR3, new Vector3f(2, 2, 1)));
-                    packedItems.add(new SynchedEntityData.DataValue<>(13, EntityDataSerializers.QUATERNION, new Quaternionf().rotateX((float) Math.toRadians(-90)).rotateY((float) Math.toRadians(90))));
-                    packedItems.add(new SynchedEntityData.DataValue<>(23, EntityDataSerializers.ITEM_STACK, editItem(itemStack, false).orElse(itemStack)));
-                    packedItems.add(new SynchedEntityData.DataValue<>(24, EntityDataSerializers.BYTE, (byte) 8));
-                    float yRot = Mth.wrapDegrees(packet.getYRot() - (packet.getYRot() - 90) * 2);
-                    ctx.channel().writeAndFlush(new ClientboundBundlePacket(List.of(
-                            new ClientboundAddEntityPacket(packet.getId(), packet.getUUID(), packet.getX(), packet.getY(), packet.getZ(), packet.getXRot(), yRot, EntityType.ITEM_DISPLAY, packet.getData(), packet.getMovement(), packet.getYHeadRot()),
-                            new ClientboundSetEntityDataPacket(packet.getId(), packedItems)
-                    )));
-                    return null;
-                }
+            if (LostEngine.getResourcePackUrl() == null) return packet;
+            handler.isWaitingForResourcePack = true;
+            var temp = new ClientboundResourcePackPushPacket(
+                    LostEngine.getResourcePackUUID(),
+                    LostEngine.getResourcePackUrl(),
+                    LostEngine.getResourcePackHash(),
+                    true,
+                    Optional.of(Component.literal(LostEngine.getInstance().getConfig().getString("pack_hosting.resource_pack_prompt", "Prompt")))
+            );
+            LostEngine.logger().info(temp.toString());
+            return temp;
+        });
+        registry.register(ClientboundSetHeldSlotPacket.class, "set_held_slot", (packet, ctx, handler) -> {
+            ServerPlayer player = handler.getPlayer(ctx);
+            if (player == null) return packet;
+            processNewSlot(handler.slot, (byte) packet.slot(), player, ctx);
+            handler.slot = (byte) packet.slot();
+            return packet;
+        });
+        registry.register(ClientboundUpdateRecipesPacket.class, "update_recipes", (packet, ctx, handler) -> {
+            ClientRecipes recipes = clientRecipes;
+            if (recipes == null || recipes.itemSets() != packet.itemSets() || recipes.stonecutterRecipes() != packet.stonecutterRecipes()) {
+                // The recipe manager sends the same instances to every player until the recipes are reloaded
+                clientRecipes = recipes = toClientRecipes(packet);
             }
-            case ClientboundTeleportEntityPacket(
-                    int id, PositionMoveRotation change, Set<Relative> relatives, boolean onGround
-            ) -> {
-                if (CustomThrownTrident.CUSTOM_TRIDENTS.containsKey(id)) {
-                    float yRot = Mth.wrapDegrees(change.yRot() - (change.yRot() - 90) * 2);
-                    return new ClientboundTeleportEntityPacket(id, new PositionMoveRotation(change.position(), change.deltaMovement(), yRot, change.xRot()), relatives, onGround);
-                }
+            return recipes.packet() != null ? recipes.packet() : packet;
+        });
+        registry.register(ClientboundAddEntityPacket.class, "add_entity", (packet, ctx, handler) -> {
+            if (packet.getType() != EntityType.TRIDENT) return packet;
+            ItemStack itemStack = CustomThrownTrident.CUSTOM_TRIDENTS.get(packet.getId());
+            if (itemStack != null) {
+                ObjectArrayList<SynchedEntityData.DataValue<?>> packedItems = new ObjectArrayList<>();
+                packedItems.add(new SynchedEntityData.DataValue<>(10, EntityDataSerializers.INT, 1));
+                packedItems.add(new SynchedEntityData.DataValue<>(11, EntityDataSerializers.VECTOR3, new Vector3f(0, -0.03125f, 0.6875f)));
+                packedItems.add(new SynchedEntityData.DataValue<>(12, EntityDataSerializers.VECTOR3, new Vector3f(2, 2, 1)));
+                packedItems.add(new SynchedEntityData.DataValue<>(13, EntityDataSerializers.QUATERNION, new Quaternionf().rotateX((float) Math.toRadians(-90)).rotateY((float) Math.toRadians(90))));
+                packedItems.add(new SynchedEntityData.DataValue<>(23, EntityDataSerializers.ITEM_STACK, editItem(itemStack, false).orElse(itemStack)));
+                packedItems.add(new SynchedEntityData.DataValue<>(24, EntityDataSerializers.BYTE, (byte) 8));
+                float yRot = Mth.wrapDegrees(packet.getYRot() - (packet.getYRot() - 90) * 2);
+                ctx.channel().writeAndFlush(new ClientboundBundlePacket(List.of(
+                        new ClientboundAddEntityPacket(packet.getId(), packet.getUUID(), packet.getX(), packet.getY(), packet.getZ(), packet.getXRot(), yRot, EntityType.ITEM_DISPLAY, packet.getData(), packet.getMovement(), packet.getYHeadRot()),
+                        new ClientboundSetEntityDataPacket(packet.getId(), packedItems)
+                )));
+                return null;
             }
-            case ClientboundEntityPositionSyncPacket(int id, PositionMoveRotation values, boolean onGround) -> {
-                if (CustomThrownTrident.CUSTOM_TRIDENTS.containsKey(id)) {
-                    float yRot = Mth.wrapDegrees(values.yRot() - (values.yRot() - 90) * 2);
-                    return new ClientboundEntityPositionSyncPacket(id, new PositionMoveRotation(values.position(), values.deltaMovement(), yRot, values.xRot()), onGround);
-                }
+            return packet;
+        });
+        registry.register(ClientboundTeleportEntityPacket.class, "teleport_entity", (packet, ctx, handler) -> {
+            if (CustomThrownTrident.CUSTOM_TRIDENTS.containsKey(packet.id())) {
+                PositionMoveRotation change = packet.change();
+                float yRot = Mth.wrapDegrees(change.yRot() - (change.yRot() - 90) * 2);
+                return new ClientboundTeleportEntityPacket(packet.id(), new PositionMoveRotation(change.position(), change.deltaMovement(), yRot, change.xRot()), packet.relatives(), packet.onGround());
             }
-            case ClientboundMoveEntityPacket packet -> {
-                if (!packet.hasRotation()) break;
-                int entityId = ReflectionUtils.getEntityId(packet);
-                if (CustomThrownTrident.CUSTOM_TRIDENTS.containsKey(entityId)) {
-                    byte yRot = Mth.packDegrees(Mth.wrapDegrees(packet.getYRot() - (packet.getYRot() - 90) * 2));
-                    ReflectionUtils.setYRot(packet, yRot);
-                }
+            return packet;
+        });
+        registry.register(ClientboundEntityPositionSyncPacket.class, "entity_position_sync", (packet, ctx, handler) -> {
+            if (CustomThrownTrident.CUSTOM_TRIDENTS.containsKey(packet.id())) {
+                PositionMoveRotation values = packet.values();
+                float yRot = Mth.wrapDegrees(values.yRot() - (values.yRot() - 90) * 2);
+                return new ClientboundEntityPositionSyncPacket(packet.id(), new PositionMoveRotation(values.position(), values.deltaMovement(), yRot, values.xRot()), packet.onGround());
             }
-            case ClientboundSetEntityMotionPacket packet -> {
-                if (CustomThrownTrident.CUSTOM_TRIDENTS.containsKey(packet.getId())) {
-                    // This packet is useless since we replace tridents with item displays, and they don't support it se we send position packets every tick
-                    return null;
-                }
+            return packet;
+        });
+        // Only its subclasses are sent, they are resolved to this rewriter
+        registry.register(ClientboundMoveEntityPacket.class, "move_entity", (packet, ctx, handler) -> {
+            if (!packet.hasRotation()) return packet;
+            int entityId = ReflectionUtils.getEntityId(packet);
+            if (CustomThrownTrident.CUSTOM_TRIDENTS.containsKey(entityId)) {
+                byte yRot = Mth.packDegrees(Mth.wrapDegrees(packet.getYRot() - (packet.getYRot() - 90) * 2));
+                ReflectionUtils.setYRot(packet, yRot);
+                handler.reportRewrite(true);
             }
-            case ClientboundRegistryDataPacket(
-                    ResourceKey<? extends Registry<?>> registry,
-                    List<RegistrySynchronization.PackedRegistryEntry> entries
-            ) -> {
-                if (registry.identifier().equals(Registries.PAINTING_VARIANT.identifier())) {
-                    handler.paintingItems.clear();
-                    entries = new ObjectArrayList<>(entries);
-                    for (CustomItem customItem : LostEngine.getCustomItems()) {
-                        CompoundTag compoundTag = new CompoundTag();
-                        compoundTag.putString("asset_id", "minecraft:");
-                        compoundTag.putString("author", "LostEngine");
-                        compoundTag.putInt("height", 1);
-                        compoundTag.putInt("width", 1);
-                        Tag componentTag = ComponentSerialization.CODEC.encodeStart(
-                                NbtOps.INSTANCE,
-                                customItem.asItem().getName()
-                        ).getOrThrow();
-                        compoundTag.put("title", componentTag);
-                        entries.add(new RegistrySynchronization.PackedRegistryEntry(Identifier.parse(customItem.getId() + "_painting"), Optional.of(compoundTag)));
-                        handler.paintingItems.put(entries.size(), customItem);
-                    }
-                    return new ClientboundRegistryDataPacket(registry, entries);
-                }
+            return packet;
+        });
+        registry.register(ClientboundSetEntityMotionPacket.class, "set_entity_motion", (packet, ctx, handler) -> {
+            // This packet is useless since we replace tridents with item displays, and they don't support it se we send position packets every tick
+            return CustomThrownTrident.CUSTOM_TRIDENTS.containsKey(packet.getId()) ? null : packet;
+        });
+        registry.register(ClientboundUpdateTagsPacket.class, "update_tags", (packet, ctx, handler) -> {
+            TagNetworkSerialization.NetworkPayload blockTags = packet.getTags().get(Registries.BLOCK);
+            if (blockTags != null) {
+                Map<ResourceKey<? extends Registry<?>>, TagNetworkSerialization.NetworkPayload> tags = new HashMap<>(packet.getTags());
+                tags.put(Registries.BLOCK, ClientBlockTags.withClientTags(blockTags));
+                return new ClientboundUpdateTagsPacket(tags);
             }
-            default -> {
+            return packet;
+        });
+        registry.register(ClientboundRegistryDataPacket.class, "registry_data", (packet, ctx, handler) -> {
+            ResourceKey<? extends Registry<?>> registryKey = packet.registry();
+            if (registryKey.identifier().equals(Registries.PAINTING_VARIANT.identifier())) {
+                PaintingVariants variants = getPaintingVariants();
+                List<RegistrySynchronization.PackedRegistryEntry> entries = new ObjectArrayList<>(packet.entries().size() + variants.entries().size());
+                entries.addAll(packet.entries());
+                entries.addAll(variants.entries());
+                // Holders are sent with their id + 1
+                handler.firstPaintingId = packet.entries().size() + 1;
+                handler.paintingItems = variants.items();
+                return new ClientboundRegistryDataPacket(registryKey, entries);
             }
+            return packet;
+        });
+    }
+
+    /**
+     * Only the values that can hold an item or a block state are translated, this only depends on their serializer
+     *
+     * @return the value to send, {@code dataValue} itself if the client already knows it
+     */
+    private static @NotNull SynchedEntityData.DataValue<?> toClientDataValue(@NotNull SynchedEntityData.DataValue<?> dataValue) {
+        EntityDataSerializer<?> serializer = dataValue.serializer();
+        if (serializer == EntityDataSerializers.ITEM_STACK) {
+            Optional<ItemStack> newItem = editItem((ItemStack) dataValue.value(), false);
+            if (newItem.isPresent()) return new SynchedEntityData.DataValue<>(dataValue.id(), EntityDataSerializers.ITEM_STACK, newItem.get());
+        } else if (serializer == EntityDataSerializers.BLOCK_STATE) {
+            BlockState newBlockState = ClientBlockStates.get((BlockState) dataValue.value(), false);
+            if (newBlockState != null) return new SynchedEntityData.DataValue<>(dataValue.id(), EntityDataSerializers.BLOCK_STATE, newBlockState);
+        } else if (serializer == EntityDataSerializers.OPTIONAL_BLOCK_STATE && dataValue.value() instanceof Optional<?> optional && optional.isPresent()) {
+            BlockState newBlockState = ClientBlockStates.get((BlockState) optional.get(), false);
+            if (newBlockState != null) return new SynchedEntityData.DataValue<>(dataValue.id(), EntityDataSerializers.OPTIONAL_BLOCK_STATE, Optional.of(newBlockState));
         }
-        return msg;
+        return dataValue;
+    }
+
+    /**
+     * Custom tridents are sent as item displays, only the base entity values and the item display values that are set are kept
+     */
+    @CanBreakOnUpdates("1.21.11") /// See {@link net.minecraft.world.entity.Display.ItemDisplay}
+    private static boolean isItemDisplayData(@NotNull SynchedEntityData.DataValue<?> dataValue) {
+        EntityDataSerializer<?> serializer = dataValue.serializer();
+        return switch (dataValue.id()) {
+            case 10 -> serializer == EntityDataSerializers.INT;
+            case 11, 12 -> serializer == EntityDataSerializers.VECTOR3;
+            case 13 -> serializer == EntityDataSerializers.QUATERNION;
+            case 23 -> serializer == EntityDataSerializers.ITEM_STACK;
+            case 24 -> serializer == EntityDataSerializers.BYTE;
+            default -> dataValue.id() < 8;
+        };
     }
 
     private static boolean isIsDynamicMaterial(int containerId, @Nullable ServerPlayer player, int slot) {
-        boolean isDynamicMaterial = false;
-        int hotbarSlot = -1;
-        if (player != null) {
-            if (containerId == 0) {
-                if (slot == 45) isDynamicMaterial = true;
-                else hotbarSlot = slot - 36;
-            } else if (player.containerMenu.menuType == MenuType.GENERIC_9x1) hotbarSlot = (slot - 36);
-            else if (player.containerMenu.menuType == MenuType.GENERIC_9x2) hotbarSlot = (slot - 45);
-            else if (player.containerMenu.menuType == MenuType.GENERIC_3x3 ||
-                    player.containerMenu.menuType == MenuType.SHULKER_BOX) hotbarSlot = (slot - 54);
-            else if (player.containerMenu.menuType == MenuType.GENERIC_9x4) hotbarSlot = (slot - 63);
-            else if (player.containerMenu.menuType == MenuType.GENERIC_9x5) hotbarSlot = (slot - 72);
-            else if (player.containerMenu.menuType == MenuType.GENERIC_9x6) hotbarSlot = (slot - 81);
-            else if (player.containerMenu.menuType == MenuType.BEACON) hotbarSlot = (slot - 28);
-            else if (player.containerMenu.menuType == MenuType.BLAST_FURNACE ||
-                    player.containerMenu.menuType == MenuType.FURNACE ||
-                    player.containerMenu.menuType == MenuType.SMOKER ||
-                    player.containerMenu.menuType == MenuType.ANVIL ||
-                    player.containerMenu.menuType == MenuType.GRINDSTONE ||
-                    player.containerMenu.menuType == MenuType.MERCHANT ||
-                    player.containerMenu.menuType == MenuType.CARTOGRAPHY_TABLE) hotbarSlot = (slot - 30);
-            else if (player.containerMenu.menuType == MenuType.BREWING_STAND ||
-                    player.containerMenu.menuType == MenuType.HOPPER) hotbarSlot = (slot - 32);
-            else if (player.containerMenu.menuType == MenuType.CRAFTING) hotbarSlot = (slot - 37);
-            else if (player.containerMenu.menuType == MenuType.ENCHANTMENT ||
-                    player.containerMenu.menuType == MenuType.STONECUTTER) hotbarSlot = (slot - 29);
-            else if (player.containerMenu.menuType == MenuType.LOOM ||
-                    player.containerMenu.menuType == MenuType.SMITHING) hotbarSlot = (slot - 31);
-
-            if (!isDynamicMaterial) isDynamicMaterial = hotbarSlot == player.getInventory().getSelectedSlot();
+        return isIsDynamicMaterial(containerId, slot, getSelectedMenuSlot(containerId, player));
+    }
+
+    /**
+     * @param selectedMenuSlot the result of {@link #getSelectedMenuSlot(int, ServerPlayer)}, it only has to be resolved once per packet
+     */
+    private static boolean isIsDynamicMaterial(int containerId, int slot, int selectedMenuSlot) {
+        if (selectedMenuSlot < 0) return false;
+        return slot == selectedMenuSlot || containerId == 0 && slot == InventoryMenu.SHIELD_SLOT;
+    }
+
+    /**
+     * @return the slot of the open container holding the selected hotbar item or {@code -1} if it is unknown
+     */
+    private static int getSelectedMenuSlot(int containerId, @Nullable ServerPlayer player) {
+        if (player == null) return -1;
+        int hotbarStart = containerId == 0 ? InventoryMenu.USE_ROW_SLOT_START : HOTBAR_STARTS.getInt(player.containerMenu.menuType);
+        return hotbarStart < 0 ? -1 : hotbarStart + player.getInventory().getSelectedSlot();
+    }
+
+    /**
+     * Result of {@link #rewriteChunk}, it only depends on the chunk contents so it can be shared between connections
+     *
+     * @param buffer the rewritten chunk buffer or {@code null} if the client can use the original one
+     */
+    record ChunkRewrite(byte @Nullable [] buffer) {
+    }
+
+    /**
+     * @return whether the chunk data was replaced
+     */
+    private static boolean processChunkPacket(@NotNull ClientboundLevelChunkWithLightPacket packet, @NotNull ChannelHandlerContext ctx, @NotNull ChannelDupeHandler handler) throws Exception {
+        ChunkRewrite rewrite = computeChunkRewrite(
+                packet,
+                ctx.alloc(),
+                handler.dimension,
+                handler.sectionsCount,
+                handler.minY
+        );
+        return applyChunkRewrite(packet, rewrite);
+    }
+
+    /**
+     * Doesn't touch the connection state, so it can run outside the event loop
+     */
+    private static @NotNull ChunkRewrite computeChunkRewrite(
+            @NotNull ClientboundLevelChunkWithLightPacket packet,
+            @NotNull ByteBufAllocator alloc,
+            @Nullable ResourceKey<Level> dimension,
+            int sectionCount,
+            int minY
+    ) throws Exception {
+        byte[] source = ReflectionUtils.getBuffer(packet.getChunkData());
+        ChunkRewrite rewrite = dimension != null ? ChunkPacketCache.get(dimension, packet.getX(), packet.getZ(), source, sectionCount, minY) : null;
+        if (rewrite == null) {
+            rewrite = ChunkSectionTranscoder.isEnabled() ?
+                    transcodeChunk(alloc, source, sectionCount) :
+                    rewriteChunk(source, sectionCount);
+            if (dimension != null) ChunkPacketCache.put(dimension, packet.getX(), packet.getZ(), source, sectionCount, minY, rewrite);
+        }
+        return rewrite;
+    }
+
+    private static boolean applyChunkRewrite(@NotNull ClientboundLevelChunkWithLightPacket packet, @NotNull ChunkRewrite rewrite) throws Exception {
+        if (rewrite.buffer() == null) return false;
+        ReflectionUtils.setBuffer(packet.getChunkData(), rewrite.buffer());
+        return true;
+    }
+
+    /**
+     * Rewrites the chunk sections directly from the packet buffer using {@link ChunkSectionTranscoder}
+     */
+    private static @NotNull ChunkRewrite transcodeChunk(@NotNull ByteBufAllocator alloc, byte @NotNull [] source, int sectionCount) {
+        ByteBuf in = Unpooled.wrappedBuffer(source);
+        ByteBuf out = alloc.buffer(source.length);
+        try {
+            boolean changed = ChunkSectionTranscoder.transcode(in, out, sectionCount, ClientBlockStates.getTable(true));
+            if (in.isReadable()) out.writeBytes(in);
+            return new ChunkRewrite(changed ? ByteBufUtil.getBytes(out) : null);
+        } finally {
+            out.release();
         }
-        return isDynamicMaterial;
     }
 
-    private static void processChunkPacket(int chunkX, int chunkZ, @NotNull ClientboundLevelChunkPacketData packet, int sectionCount, int minY, Long2IntOpenHashMap customBlockStateCache) throws Exception {
-        FriendlyByteBuf oldBuf = new FriendlyByteBuf(packet.getReadBuffer());
+    /**
+     * Slower version of {@link #transcodeChunk} decoding every {@link LevelChunkSection},
+     * only used if the transcoder doesn't understand the chunk section format
+     */
+    private static @NotNull ChunkRewrite rewriteChunk(byte @NotNull [] source, int sectionCount) throws Exception {
+        FriendlyByteBuf oldBuf = new FriendlyByteBuf(Unpooled.wrappedBuffer(source));
         LevelChunkSection[] sections = new LevelChunkSection[sectionCount];
         boolean requiresEdit = false;
 
@@ -665,81 +1152,85 @@ public class PacketListener {
             //noinspection DataFlowIssue -- It should work fine
             LevelChunkSection section = new LevelChunkSection(PalettedContainerFactory.create(MinecraftServer.getServer().registryAccess()), null, null, 0);
             section.read(oldBuf);
-
-            int sectionY = (i + (minY >> 4)) << 4;
+            sections[i] = section;
 
             PalettedContainer<BlockState> container = section.getStates();
             Palette<BlockState> palette = container.data.palette();
             Object[] values = palette.moonrise$getRawPalette(null);
 
-            for (int x = 0; x < 16; x++) {
-                for (int y = 0; y < 16; y++) {
-                    for (int z = 0; z < 16; z++) {
-                        BlockState blockState = section.getBlockState(x, y, z);
-                        Optional<BlockState> clientBlockState = getClientBlockState(blockState, true);
-                        long blockPosLong = BlockPos.asLong((chunkX << 4) + x, sectionY + y, (chunkZ << 4) + z);
-                        if (clientBlockState.isPresent()) {
-                            // If we used section.setBlockState(x, y, z, clientBlockState.get());
+            // The full walk is only needed for global palettes (the actual blocks need to be edited)
+            if (values == null) {
+                for (int x = 0; x < 16; x++) {
+                    for (int y = 0; y < 16; y++) {
+                        for (int z = 0; z < 16; z++) {
+                            // If we used section.setBlockState(x, y, z, clientBlockState) with other palettes,
                             // it wouldn't remove custom blocks from the palette and make the client crash,
-                            // we don't have the choice to also modify the palette.
-                            // But if it is a global palette, we need to edit the actual blocks.
-                            if (values == null) {
-                                section.setBlockState(x, y, z, clientBlockState.get());
+                            // so for them only the palette is modified.
+                            BlockState clientBlockState = ClientBlockStates.get(section.getBlockState(x, y, z), true);
+                            if (clientBlockState != null) {
+                                section.setBlockState(x, y, z, clientBlockState);
                                 requiresEdit = true;
                             }
-                            if (blockState.getBlock() instanceof CustomBlock)
-                                customBlockStateCache.put(blockPosLong, Block.getId(blockState));
-                        } else {
-                            customBlockStateCache.remove(blockPosLong);
                         }
                     }
                 }
-            }
-
-
-            if (values != null) {
-                if (palette instanceof SingleValuePalette<BlockState> singleValuePalette) {
-                    Optional<BlockState> blockState = getClientBlockState((BlockState) values[0], true);
-                    if (blockState.isPresent()) {
-                        values[0] = blockState.get();
-                        ReflectionUtils.setValue(singleValuePalette, blockState.get());
-                        requiresEdit = true;
-                    }
-                } else {
-                    for (int j = 0; j < values.length; j++) {
-                        Object obj = values[j];
-                        if (obj instanceof BlockState state) {
-                            Optional<BlockState> clientBlockState = getClientBlockState(state, true);
-                            if (clientBlockState.isPresent()) {
-                                values[j] = clientBlockState.get();
-                                requiresEdit = true;
-                            }
+            } else if (palette instanceof SingleValuePalette<BlockState> singleValuePalette) {
+                BlockState blockState = ClientBlockStates.get((BlockState) values[0], true);
+                if (blockState != null) {
+                    values[0] = blockState;
+                    ReflectionUtils.setValue(singleValuePalette, blockState);
+                    requiresEdit = true;
+                }
+            } else {
+                for (int j = 0; j < values.length; j++) {
+                    Object obj = values[j];
+                    if (obj instanceof BlockState state) {
+                        BlockState clientBlockState = ClientBlockStates.get(state, true);
+                        if (clientBlockState != null) {
+                            values[j] = clientBlockState;
+                            requiresEdit = true;
                         }
                     }
                 }
             }
-
-            sections[i] = section;
         }
 
+        byte[] buffer = null;
         if (requiresEdit) {
             FriendlyByteBuf newBuf = new FriendlyByteBuf(Unpooled.buffer());
             for (LevelChunkSection section : sections) {
                 //noinspection DataFlowIssue -- actually nullable
                 section.write(newBuf, null, 0);
             }
-            ReflectionUtils.setBuffer(packet, newBuf.array());
+            buffer = newBuf.array();
         }
+        return new ChunkRewrite(buffer);
     }
 
     public static Optional<ItemStack> editItem(@NotNull ItemStack item, boolean dynamicMaterial) {
-        Optional<ItemStack> optionalItemStack = Optional.empty();
-        if (item.isEmpty()) return optionalItemStack;
+        if (item.isEmpty()) return Optional.empty();
+        setMushroomBlockState(item);
+        return Optional.of(ClientItemCache.get(item, dynamicMaterial, prototype -> toClientItem(prototype, dynamicMaterial)));
+    }
+
+    /**
+     * Same as comparing the hashes sent by the client with {@code editItem(item, dynamicMaterial)} without building the client item
+     */
+    private static boolean matchesClientItem(@NotNull HashedStack hashedStack, @NotNull ItemStack item, boolean dynamicMaterial, @NotNull HashedPatchMap.HashGenerator hashGenerator) {
+        if (item.isEmpty() || !(hashedStack instanceof HashedStack.ActualItem actualItem)) return hashedStack.matches(item, hashGenerator);
+        setMushroomBlockState(item);
+        return ClientItemCache.matches(actualItem, item, dynamicMaterial, prototype -> toClientItem(prototype, dynamicMaterial), hashGenerator);
+    }
+
+    private static void setMushroomBlockState(@NotNull ItemStack item) {
         if (item.is(Items.RED_MUSHROOM_BLOCK) || (item.is(Items.MUSHROOM_STEM) || item.is(Items.BROWN_MUSHROOM_BLOCK))) {
             if (ItemUtils.getCustomStringData(item, "lost_engine_id") == null) { // Verify it is not already converted
                 item.set(DataComponents.BLOCK_STATE, MUSHROOM_BLOCK_ITEM_STATE_PROPERTIES);
             }
         }
+    }
+
+    private static @NotNull ItemStack toClientItem(@NotNull ItemStack item, boolean dynamicMaterial) {
         if (item.getItem() instanceof CustomItem customItem) {
             ItemStack newItem = dynamicMaterial ? customItem.getDynamicMaterial() : customItem.getDefaultMaterial();
             newItem.setCount(item.getCount());
@@ -750,92 +1241,245 @@ public class PacketListener {
         }
         Tool tool = item.getComponents().get(DataComponents.TOOL);
         item = item.copy();
-        if (tool != null) {
-            List<Tool.Rule> rules = new ObjectArrayList<>(tool.rules());
-            for (int i = 0, size = rules.size(); i < size; i++) {
-                Tool.Rule rule = rules.get(i);
-                HolderSet<Block> originalSet = rule.blocks();
-                List<Holder<Block>> filtered = new ObjectArrayList<>();
-                for (Holder<Block> holder : originalSet) {
-                    if (holder != MUSHROOM_STEM_HOLDER && holder != BROWN_MUSHROOM_BLOCK_HOLDER && holder != RED_MUSHROOM_BLOCK_HOLDER && !(holder.value() instanceof CustomBlock)) {
-                        filtered.add(holder);
-                    }
-                }
-                HolderSet.Direct<Block> newSet = HolderSet.direct(filtered);
-                rules.set(i, new Tool.Rule(newSet, rule.speed(), rule.correctForDrops()));
-            }
-            rules.add(new Tool.Rule(
-                    HolderSet.direct(List.of(MUSHROOM_STEM_HOLDER, BROWN_MUSHROOM_BLOCK_HOLDER, RED_MUSHROOM_BLOCK_HOLDER)),
-                    Optional.of(0.01F),
-                    Optional.empty()
-            ));
-            tool = new Tool(rules, tool.defaultMiningSpeed(), tool.damagePerBlock(), tool.canDestroyBlocksInCreative());
-            item.set(DataComponents.TOOL, tool);
-        } else {
-            item.set(
-                    DataComponents.TOOL,
-                    new Tool(
-                            List.of(new Tool.Rule(
-                                    HolderSet.direct(List.of(MUSHROOM_STEM_HOLDER, BROWN_MUSHROOM_BLOCK_HOLDER, RED_MUSHROOM_BLOCK_HOLDER)),
-                                    Optional.of(0.01F),
-                                    Optional.empty()
-                            )),
-                            1.0F,
-                            1,
-                            true
-                    ));
+        item.set(DataComponents.TOOL, tool != null ? CLIENT_TOOLS.computeIfAbsent(tool, PacketListener::toClientTool) : DEFAULT_CLIENT_TOOL);
+        return item;
+    }
+
+    /**
+     * Only the fields sent by {@link MerchantOffer#STREAM_CODEC} are kept
+     */
+    @CanBreakOnUpdates("1.21.11")
+    private static @NotNull MerchantOffer toClientOffer(@NotNull MerchantOffer offer) {
+        MerchantOffer clientOffer = new MerchantOffer(
+                toClientItemCost(offer.getItemCostA()),
+                offer.getItemCostB().map(PacketListener::toClientItemCost),
+                editItem(offer.getResult(), false).orElse(offer.getResult()),
+                offer.getUses(),
+                offer.getMaxUses(),
+                offer.getXp(),
+                offer.getPriceMultiplier(),
+                offer.getDemand()
+        );
+        clientOffer.setSpecialPriceDiff(offer.getSpecialPriceDiff());
+        return clientOffer;
+    }
+
+    /**
+     * Costs are sent as an item and the components it must have, so custom items are sent as their client item with its components
+     */
+    private static @NotNull ItemCost toClientItemCost(@NotNull ItemCost cost) {
+        if (!(cost.item().value() instanceof CustomItem)) return cost;
+        ItemStack clientItem = editItem(cost.itemStack(), false).orElse(cost.itemStack());
+        return new ItemCost(
+                clientItem.getItemHolder(),
+                cost.count(),
+                DataComponentExactPredicate.allOf(PatchedDataComponentMap.fromPatch(DataComponentMap.EMPTY, clientItem.getComponentsPatch()))
+        );
+    }
+
+    /**
+     * Painting variants added after the vanilla ones, the creative inventory sends the custom items back as paintings of these variants.
+     * They only depend on the custom items, so they are built once and shared by every connection
+     *
+     * @param entries the registry entries of the variants, in the same order as their custom items
+     */
+    private record PaintingVariants(@NotNull List<RegistrySynchronization.PackedRegistryEntry> entries, @NotNull List<CustomItem> items) {
+    }
+
+    private static volatile @Nullable PaintingVariants paintingVariants = null;
+
+    private static @NotNull PaintingVariants getPaintingVariants() {
+        PaintingVariants variants = paintingVariants;
+        if (variants == null) paintingVariants = variants = buildPaintingVariants();
+        return variants;
+    }
+
+    private static @NotNull PaintingVariants buildPaintingVariants() {
+        List<CustomItem> items = LostEngine.getCustomItems();
+        List<RegistrySynchronization.PackedRegistryEntry> entries = new ObjectArrayList<>(items.size());
+        for (CustomItem customItem : items) {
+            CompoundTag compoundTag = new CompoundTag();
+            compoundTag.putString("asset_id", "minecraft:");
+            compoundTag.putString("author", "LostEngine");
+            compoundTag.putInt("height", 1);
+            compoundTag.putInt("width", 1);
+            Tag componentTag = ComponentSerialization.CODEC.encodeStart(
+                    NbtOps.INSTANCE,
+                    customItem.asItem().getName()
+            ).getOrThrow();
+            compoundTag.put("title", componentTag);
+            entries.add(new RegistrySynchronization.PackedRegistryEntry(Identifier.parse(customItem.getId() + "_painting"), Optional.of(compoundTag)));
         }
-        optionalItemStack = Optional.of(item);
-        return optionalItemStack;
+        return new PaintingVariants(List.copyOf(entries), List.copyOf(items));
     }
 
-    public static Optional<ItemStack> editItemBackward(@NotNull ItemStack item) {
-        if (!item.isEmpty()) {
-            String lostEngineId = ItemUtils.getCustomStringData(item, "lost_engine_id");
-            if (lostEngineId != null) {
-                Identifier id = Identifier.parse(lostEngineId);
-                return BuiltInRegistries.ITEM.get(id).map(builtInItem -> {
-                    ItemStack newItem = new ItemStack(builtInItem, item.getCount());
-                    newItem.applyComponents(item.getComponents());
-                    ItemUtils.removeCustomStringData(newItem, "lost_engine_id");
-                    newItem.set(DataComponents.TOOL, newItem.getItem().getDefaultInstance().get(DataComponents.TOOL));
-                    newItem.set(DataComponents.BLOCK_STATE, newItem.getItem().getDefaultInstance().get(DataComponents.BLOCK_STATE));
-                    newItem.set(DataComponents.REPAIRABLE, newItem.getItem().getDefaultInstance().get(DataComponents.REPAIRABLE));
-                    return newItem;
-                });
-            } else {
-                ItemStack newItem = null;
-                if (item.has(DataComponents.TOOL)) {
-                    // Sadly, I don't really have the choice to remove the tool component
-                    // as I send to the client that it takes ages to break blocks that are
-                    // used for custom blocks using the tool component
-                    newItem = item.copy();
-                    newItem.set(DataComponents.TOOL, newItem.getItem().getDefaultInstance().get(DataComponents.TOOL));
-                }
-                BlockItemStateProperties blockItemStateProperties = item.get(DataComponents.BLOCK_STATE);
-                if (blockItemStateProperties != null && MUSHROOM_BLOCK_ITEM_STATE_PROPERTIES.properties().equals(blockItemStateProperties.properties())) {
-                    if (newItem == null) newItem = item.copy();
-                    newItem.set(DataComponents.BLOCK_STATE, newItem.getItem().getDefaultInstance().get(DataComponents.BLOCK_STATE));
+    /**
+     * Drops the painting variants, they are built again for the next connections
+     */
+    public static void clearPaintingVariants() {
+        paintingVariants = null;
+    }
+
+    /**
+     * The recipe sync packet of the current recipes without the custom items in the item sets, it is the same for every player
+     *
+     * @param itemSets           the item sets of the recipe manager this was built from
+     * @param stonecutterRecipes the stonecutter recipes of the recipe manager this was built from
+     * @param packet             the packet to send or {@code null} if no item set contains a custom item
+     */
+    private record ClientRecipes(
+            @NotNull Map<ResourceKey<RecipePropertySet>, RecipePropertySet> itemSets,
+            @NotNull SelectableRecipe.SingleInputSet<StonecutterRecipe> stonecutterRecipes,
+            @Nullable ClientboundUpdateRecipesPacket packet
+    ) {
+    }
+
+    private static volatile @Nullable ClientRecipes clientRecipes = null;
+
+    /**
+     * The item sets of the server are left untouched, the client gets filtered copies
+     */
+    private static @NotNull ClientRecipes toClientRecipes(@NotNull ClientboundUpdateRecipesPacket packet) throws Exception {
+        Map<ResourceKey<RecipePropertySet>, RecipePropertySet> itemSets = new HashMap<>(packet.itemSets());
+        boolean changed = false;
+        for (Map.Entry<ResourceKey<RecipePropertySet>, RecipePropertySet> entry : itemSets.entrySet()) {
+            Set<Holder<Item>> items = ReflectionUtils.getItems(entry.getValue());
+            List<Item> clientItems = new ObjectArrayList<>(items.size());
+            for (Holder<Item> item : items) {
+                if (!(item.value() instanceof CustomItem)) clientItems.add(item.value());
+            }
+            if (clientItems.size() != items.size()) {
+                entry.setValue(RecipePropertySet.create(clientItems));
+                changed = true;
+            }
+        }
+        return new ClientRecipes(
+                packet.itemSets(),
+                packet.stonecutterRecipes(),
+                changed ? new ClientboundUpdateRecipesPacket(itemSets, packet.stonecutterRecipes()) : null
+        );
+    }
+
+    /**
+     * Drops the memoized client tools, they depend on the block tags and the config
+     */
+    public static void clearClientTools() {
+        CLIENT_TOOLS.clear();
+        CLIENT_MINING_TOOLS.clear();
+    }
+
+    /**
+     * @return the client item of {@code item} with a tool the server can test, see {@link ClientBlockTags#toServerBlocks(HolderSet)}
+     */
+    private static @NotNull ItemStack toClientMiningItem(@NotNull ItemStack item) {
+        ItemStack clientItem = editItem(item, false).orElse(item);
+        Tool tool = clientItem.get(DataComponents.TOOL);
+        if (tool == null) return clientItem;
+        Tool miningTool = CLIENT_MINING_TOOLS.computeIfAbsent(tool, PacketListener::toClientMiningTool);
+        if (miningTool == tool) return clientItem;
+        ItemStack miningItem = clientItem.copy();
+        miningItem.set(DataComponents.TOOL, miningTool);
+        return miningItem;
+    }
+
+    private static @NotNull Tool toClientMiningTool(@NotNull Tool tool) {
+        List<Tool.Rule> rules = new ObjectArrayList<>(tool.rules().size());
+        boolean changed = false;
+        for (Tool.Rule rule : tool.rules()) {
+            HolderSet<Block> blocks = ClientBlockTags.toServerBlocks(rule.blocks());
+            changed |= blocks != rule.blocks();
+            rules.add(blocks == rule.blocks() ? rule : new Tool.Rule(blocks, rule.speed(), rule.correctForDrops()));
+        }
+        return changed ? new Tool(rules, tool.defaultMiningSpeed(), tool.damagePerBlock(), tool.canDestroyBlocksInCreative()) : tool;
+    }
+
+    private static @NotNull Tool toClientTool(@NotNull Tool tool) {
+        List<Tool.Rule> rules = new ObjectArrayList<>(tool.rules().size() + 1);
+        for (Tool.Rule rule : tool.rules()) {
+            HolderSet<Block> clientTag = rule.blocks().unwrapKey().map(ClientBlockTags::getClientTag).orElse(null);
+            if (clientTag != null) {
+                rules.add(clientTag == rule.blocks() ? rule : new Tool.Rule(clientTag, rule.speed(), rule.correctForDrops()));
+                continue;
+            }
+            List<Holder<Block>> filtered = new ObjectArrayList<>();
+            for (Holder<Block> holder : rule.blocks()) {
+                if (!ClientBlockTags.isHiddenFromTools(holder.value())) {
+                    filtered.add(holder);
                 }
-                return Optional.ofNullable(newItem);
             }
+            rules.add(new Tool.Rule(HolderSet.direct(filtered), rule.speed(), rule.correctForDrops()));
         }
-        return Optional.empty();
+        rules.add(MUSHROOM_TOOL_RULE);
+        return new Tool(rules, tool.defaultMiningSpeed(), tool.damagePerBlock(), tool.canDestroyBlocksInCreative());
     }
 
-    private static void processNewSlot(byte oldSlot, byte newSlot, ServerPlayer player) {
-        if (oldSlot != newSlot) {
-            // Previous Item
-            PacketListener.editItem(player.getInventory().getItem(oldSlot), false).ifPresent(itemStack ->
-                    player.connection.send(new ClientboundSetPlayerInventoryPacket(oldSlot, itemStack))
-            );
-            // New Item
-            PacketListener.editItem(player.getInventory().getItem(newSlot), true).ifPresent(itemStack ->
-                    player.connection.send(new ClientboundSetPlayerInventoryPacket(newSlot, itemStack))
-            );
+    public static Optional<ItemStack> editItemBackward(@NotNull ItemStack item) {
+        if (item.isEmpty()) return Optional.empty();
+        // Items that were never edited only have their default tool and block state, and no lost_engine_id
+        if (!item.has(DataComponents.CUSTOM_DATA) && isDefault(item, DataComponents.TOOL) && isDefault(item, DataComponents.BLOCK_STATE)) {
+            return Optional.empty();
+        }
+        String lostEngineId = ItemUtils.getCustomStringData(item, "lost_engine_id");
+        if (lostEngineId != null) {
+            Item customItem = LostEngine.getCustomItem(lostEngineId);
+            Identifier id = customItem == null ? Identifier.tryParse(lostEngineId) : null;
+            Optional<Item> serverItem = customItem != null ? Optional.of(customItem) : id != null ? BuiltInRegistries.ITEM.getOptional(id) : Optional.empty();
+            return serverItem.map(builtInItem -> {
+                ItemStack newItem = new ItemStack(builtInItem, item.getCount());
+                newItem.applyComponents(item.getComponents());
+                ItemUtils.removeCustomStringData(newItem, "lost_engine_id");
+                resetToDefault(newItem, DataComponents.TOOL);
+                resetToDefault(newItem, DataComponents.BLOCK_STATE);
+                resetToDefault(newItem, DataComponents.REPAIRABLE);
+                return newItem;
+            });
+        } else {
+            ItemStack newItem = null;
+            if (!isDefault(item, DataComponents.TOOL)) {
+                // Sadly, I don't really have the choice to remove the tool component
+                // as I send to the client that it takes ages to break blocks that are
+                // used for custom blocks using the tool component
+                newItem = item.copy();
+                resetToDefault(newItem, DataComponents.TOOL);
+            }
+            BlockItemStateProperties blockItemStateProperties = item.get(DataComponents.BLOCK_STATE);
+            if (blockItemStateProperties != null && MUSHROOM_BLOCK_ITEM_STATE_PROPERTIES.properties().equals(blockItemStateProperties.properties())) {
+                if (newItem == null) newItem = item.copy();
+                resetToDefault(newItem, DataComponents.BLOCK_STATE);
+            }
+            return Optional.ofNullable(newItem);
         }
     }
 
+    /**
+     * @return whether the item has the default value of its item for this component, this is an identity check
+     * so it can be a false negative but never a false positive
+     */
+    private static boolean isDefault(@NotNull ItemStack item, @NotNull DataComponentType<?> type) {
+        return item.get(type) == item.getPrototype().get(type);
+    }
+
+    private static <T> void resetToDefault(@NotNull ItemStack item, @NotNull DataComponentType<T> type) {
+        item.set(type, item.getPrototype().get(type));
+    }
+
+    /**
+     * Sends the held item with its dynamic material and the previously held one with its default material,
+     * the packets are already translated so they are written after this handler
+     */
+    private static void processNewSlot(byte oldSlot, byte newSlot, @NotNull ServerPlayer player, @NotNull ChannelHandlerContext ctx) {
+        if (oldSlot == newSlot) return;
+        ItemStack oldItem = player.getInventory().getItem(oldSlot);
+        ItemStack newItem = player.getInventory().getItem(newSlot);
+        boolean updateOldItem = LostEngine.hasDynamicMaterial(oldItem.getItem());
+        boolean updateNewItem = LostEngine.hasDynamicMaterial(newItem.getItem());
+        if (!updateOldItem && !updateNewItem) return;
+        List<Packet<? super ClientGamePacketListener>> packets = new ObjectArrayList<>(2);
+        if (updateOldItem) packets.add(new ClientboundSetPlayerInventoryPacket(oldSlot, editItem(oldItem, false).orElse(oldItem)));
+        if (updateNewItem) packets.add(new ClientboundSetPlayerInventoryPacket(newSlot, editItem(newItem, true).orElse(newItem)));
+        ctx.channel().writeAndFlush(new TranslatedPacket(packets.size() == 1 ? packets.getFirst() : new ClientboundBundlePacket(packets)));
+    }
+
     private static void processCommonPlayerSpawnInfo(@NotNull CommonPlayerSpawnInfo commonPlayerSpawnInfo, @NotNull ChannelDupeHandler handler) {
         @CanBreakOnUpdates("1.21.11") /// See {@link net.minecraft.world.level.Level#Level}
                 DimensionType dimType = commonPlayerSpawnInfo.dimensionType().value();
@@ -845,73 +1489,39 @@ public class PacketListener {
         int minSectionY = handler.minY >> 4;
         int maxSectionY = handler.maxY >> 4;
         handler.sectionsCount = maxSectionY - minSectionY + 1;
-        handler.customBlockStateCache.clear();
-    }
-
-    public static String componentToJson(Component component) {
-        JsonElement jsonElement = ComponentSerialization.CODEC.encodeStart(
-                JsonOps.INSTANCE, component
-        ).getOrThrow();
-        return jsonElement.toString();
-    }
-
-    public static Component jsonToComponent(String json) {
-        JsonElement jsonElement = JsonParser.parseString(json);
-        return ComponentSerialization.CODEC.parse(
-                JsonOps.INSTANCE, jsonElement
-        ).getOrThrow();
+        handler.dimension = commonPlayerSpawnInfo.dimension();
     }
 
-    public static JsonElement replaceLostEngineHoverItems(@NotNull JsonElement element) {
-        if (element.isJsonObject()) {
-            JsonObject obj = element.getAsJsonObject();
-
-            if (obj.has("hover_event")) {
-                JsonObject hoverEvent = obj.getAsJsonObject("hover_event");
-                if (hoverEvent.has("action") && "show_item".equals(hoverEvent.get("action").getAsString()) && hoverEvent.has("id")) {
-                    String id = hoverEvent.get("id").getAsString();
-                    if (id.startsWith("lost_engine:")) {
-                        obj.remove("hover_event");
-                        // Right now I will remove it because it is a bit useless, and if we don't, it kicks the player, but I may do something else later
-                    }
-                }
+    /**
+     * The operations of the packet can't be created directly, so the packet is created again from a boss event with the same values
+     *
+     * @return the packet with the client name or {@code null} if the client can use the original one
+     */
+    private static @Nullable ClientboundBossEventPacket toClientBossEvent(@NotNull ClientboundBossEventPacket packet) {
+        ClientboundBossEventPacket[] newPacket = new ClientboundBossEventPacket[1];
+        packet.dispatch(new ClientboundBossEventPacket.Handler() {
+            @Override
+            public void add(@NotNull UUID id, @NotNull Component name, float progress, BossEvent.@NotNull BossBarColor color, BossEvent.@NotNull BossBarOverlay overlay, boolean darkenScreen, boolean playMusic, boolean createWorldFog) {
+                Component newName = ClientComponents.toClient(name);
+                if (newName == name) return;
+                BossEvent bossEvent = new BossEvent(id, newName, color, overlay) {
+                };
+                bossEvent.setProgress(progress);
+                bossEvent.setDarkenScreen(darkenScreen);
+                bossEvent.setPlayBossMusic(playMusic);
+                bossEvent.setCreateWorldFog(createWorldFog);
+                newPacket[0] = ClientboundBossEventPacket.createAddPacket(bossEvent);
             }
 
-            for (String key : obj.keySet()) {
-                JsonElement child = obj.get(key);
-                obj.add(key, replaceLostEngineHoverItems(child));
-            }
-            return obj;
-        } else if (element.isJsonArray()) {
-            JsonArray arr = element.getAsJsonArray();
-            for (int i = 0; i < arr.size(); i++) {
-                arr.set(i, replaceLostEngineHoverItems(arr.get(i)));
+            @Override
+            public void updateName(@NotNull UUID id, @NotNull Component name) {
+                Component newName = ClientComponents.toClient(name);
+                if (newName == name) return;
+                newPacket[0] = ClientboundBossEventPacket.createUpdateNamePacket(new BossEvent(id, newName, BossEvent.BossBarColor.WHITE, BossEvent.BossBarOverlay.PROGRESS) {
+                });
             }
-            return arr;
-        }
-        return element;
-    }
-
-    public static Optional<BlockState> getClientBlockState(@NotNull BlockState blockState, boolean replaceClickableBlocks) {
-        Block block = blockState.getBlock();
-        if (block instanceof CustomBlock customBlock) {
-            // if replaceClickableBlocks is true, we try to replace it with the non-clickable block if it is not null
-            return replaceClickableBlocks ?
-                    Optional.of(
-                            Optional.ofNullable(customBlock.getNotClickableBlockState())
-                                    .orElse(customBlock.getClientBlockState())
-                    ) :
-                    Optional.of(customBlock.getClientBlockState());
-        } else if (block == Blocks.BROWN_MUSHROOM_BLOCK || block == Blocks.RED_MUSHROOM_BLOCK || block == Blocks.MUSHROOM_STEM) {
-            return Optional.of(BlockStateProvider.getMushroomBlockState(blockState, 63));
-        } else if (block == Blocks.DROPPER || block == Blocks.DISPENSER) {
-            return Optional.of(blockState.setValue(BlockStateProperties.TRIGGERED, false));
-        } else if (block == Blocks.PALE_OAK_LEAVES) {
-            return Optional.of(BlockStateProvider.getLeavesBlockState(blockState, 13));
-        } else if (block == Blocks.TARGET) {
-            return Optional.of(BlockStateProvider.getTargetBlockState(blockState, 0));
-        }
-        return Optional.empty();
+        });
+        return newPacket[0];
     }
 
     /**
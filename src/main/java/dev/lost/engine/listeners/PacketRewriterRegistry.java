@@ -0,0 +1,171 @@
+package dev.lost.engine.listeners;
+
+import dev.lost.annotations.MaybeNull;
+import dev.lost.annotations.NotNull;
+import io.netty.channel.ChannelHandlerContext;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.Reference2ObjectOpenHashMap;
+import org.bukkit.configuration.file.FileConfiguration;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The packet rewriters of one direction, indexed by packet class so a packet is dispatched with a single map lookup.
+ * <p>
+ * A packet class that has no rewriter of its own uses the rewriter of its closest superclass
+ * (e.g. {@link net.minecraft.network.protocol.game.ClientboundMoveEntityPacket.Rot}), or none at all.
+ * The result is cached the first time the class is seen, so the packets that are not rewritten only cost the lookup.
+ * <p>
+ * Every rewriter can be disabled from {@code packet_rewriting.rewriters.<direction>.<name>} and is reloaded with the config.
+ */
+public class PacketRewriterRegistry {
+
+    /// See {@link PacketListener.ChannelDupeHandler#reportRewrite(boolean)}
+    static final byte NOT_REPORTED = 0;
+    static final byte UNCHANGED = 1;
+    static final byte CHANGED = 2;
+
+    /**
+     * Rewrites the packets of one class
+     */
+    @FunctionalInterface
+    interface PacketRewriter<P> {
+        /**
+         * The packet counts as rewritten if the result is not {@code packet}, unless the rewriter reports whether it changed it
+         * with {@link PacketListener.ChannelDupeHandler#reportRewrite(boolean)}, e.g. when it modifies the packet in place
+         *
+         * @return the packet to send in place of {@code packet}, {@code packet} itself if it is kept or {@code null} to drop it
+         */
+        @MaybeNull Object rewrite(@NotNull P packet, @NotNull ChannelHandlerContext ctx, @NotNull PacketListener.ChannelDupeHandler handler) throws Exception;
+    }
+
+    public static final class Entry {
+        private final String name;
+        private final PacketRewriter<Object> rewriter;
+        private volatile boolean enabled = true;
+        private final LongAdder invocations = new LongAdder();
+        private final LongAdder rewrites = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+
+        private Entry(@NotNull String name, @NotNull PacketRewriter<Object> rewriter) {
+            this.name = name;
+            this.rewriter = rewriter;
+        }
+
+        public @NotNull String getName() {
+            return name;
+        }
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public long getInvocations() {
+            return invocations.sum();
+        }
+
+        /**
+         * @return the number of packets that were changed, replaced or dropped
+         */
+        public long getRewrites() {
+            return rewrites.sum();
+        }
+
+        public long getNanos() {
+            return nanos.sum();
+        }
+    }
+
+    /// Cached for the packet classes that have no rewriter
+    private static final Entry NONE = new Entry("none", (packet, ctx, handler) -> packet);
+
+    private final String direction;
+    private final Reference2ObjectOpenHashMap<Class<?>, Entry> registered = new Reference2ObjectOpenHashMap<>();
+    /// Copied on write, it only changes the first time a packet class is seen
+    private volatile Reference2ObjectOpenHashMap<Class<?>, Entry> byClass = new Reference2ObjectOpenHashMap<>();
+
+    PacketRewriterRegistry(@NotNull String direction) {
+        this.direction = direction;
+    }
+
+    /**
+     * @param name name of the rewriter in the config, the vanilla packet name is used
+     */
+    @SuppressWarnings("unchecked")
+    synchronized <P> void register(@NotNull Class<P> type, @NotNull String name, @NotNull PacketRewriter<? super P> rewriter) {
+        Entry entry = new Entry(name, (PacketRewriter<Object>) rewriter);
+        if (registered.putIfAbsent(type, entry) != null) throw new IllegalStateException("A " + direction + " rewriter is already registered for " + type.getName());
+        byClass = new Reference2ObjectOpenHashMap<>(registered);
+    }
+
+    public synchronized void loadConfig(@NotNull FileConfiguration config) {
+        for (Entry entry : registered.values()) {
+            entry.enabled = config.getBoolean("packet_rewriting.rewriters." + direction + "." + entry.name, true);
+        }
+    }
+
+    boolean isEnabled(@NotNull Class<?> type) {
+        Entry entry = byClass.get(type);
+        if (entry == null) entry = resolve(type);
+        return entry != NONE && entry.enabled;
+    }
+
+    /**
+     * @return the packet to send in place of {@code msg}, {@code msg} itself if it is kept or {@code null} to drop it
+     */
+    @MaybeNull Object rewrite(@NotNull Object msg, @NotNull ChannelHandlerContext ctx, @NotNull PacketListener.ChannelDupeHandler handler) throws Exception {
+        Entry entry = byClass.get(msg.getClass());
+        if (entry == null) entry = resolve(msg.getClass());
+        if (entry == NONE || !entry.enabled) return msg;
+        // The bundle rewriter rewrites its sub-packets while it is running
+        byte outerReport = handler.rewriteReport;
+        handler.rewriteReport = NOT_REPORTED;
+        long start = System.nanoTime();
+        try {
+            Object result = entry.rewriter.rewrite(msg, ctx, handler);
+            byte report = handler.rewriteReport;
+            if (report == NOT_REPORTED ? result != msg : report == CHANGED) entry.rewrites.increment();
+            return result;
+        } finally {
+            entry.nanos.add(System.nanoTime() - start);
+            entry.invocations.increment();
+            handler.rewriteReport = outerReport;
+        }
+    }
+
+    /**
+     * Counts the time spent rewriting packets of this class outside of {@link #rewrite(Object, ChannelHandlerContext, PacketListener.ChannelDupeHandler)},
+     * e.g. the chunks rewritten by {@link ChunkRewriteExecutor}
+     */
+    void addNanos(@NotNull Class<?> type, long nanos) {
+        Entry entry = byClass.get(type);
+        if (entry == null) entry = resolve(type);
+        if (entry != NONE) entry.nanos.add(nanos);
+    }
+
+    private synchronized @NotNull Entry resolve(@NotNull Class<?> type) {
+        Entry entry = byClass.get(type);
+        if (entry != null) return entry;
+        entry = NONE;
+        for (Class<?> superclass = type.getSuperclass(); superclass != null; superclass = superclass.getSuperclass()) {
+            Entry registeredEntry = registered.get(superclass);
+            if (registeredEntry != null) {
+                entry = registeredEntry;
+                break;
+            }
+        }
+        Reference2ObjectOpenHashMap<Class<?>, Entry> newByClass = new Reference2ObjectOpenHashMap<>(byClass);
+        newByClass.put(type, entry);
+        byClass = newByClass;
+        return entry;
+    }
+
+    public @NotNull String getDirection() {
+        return direction;
+    }
+
+    public synchronized @NotNull List<Entry> getEntries() {
+        return new ObjectArrayList<>(registered.values());
+    }
+}
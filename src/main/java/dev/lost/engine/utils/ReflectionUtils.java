@@ -4,21 +4,30 @@ import com.mojang.datafixers.util.Pair;
 import dev.lost.annotations.CanBreakOnUpdates;
 import dev.lost.annotations.NotNull;
 import dev.lost.engine.bootstrap.components.SimpleComponentProperty;
+import it.unimi.dsi.fastutil.shorts.ShortSet;
 import net.minecraft.core.Holder;
 import net.minecraft.core.SectionPos;
 import net.minecraft.network.protocol.game.*;
+import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.level.ServerEntity;
 import net.minecraft.world.entity.EquipmentSlot;
 import net.minecraft.world.item.Item;
 import net.minecraft.world.item.ItemStack;
+import net.minecraft.world.item.Items;
 import net.minecraft.world.item.crafting.RecipePropertySet;
 import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.Blocks;
 import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import net.minecraft.world.level.chunk.PalettedContainerFactory;
 import net.minecraft.world.level.chunk.SingleValuePalette;
 import org.bukkit.Material;
 import org.bukkit.craftbukkit.util.CraftMagicNumbers;
 import org.jspecify.annotations.Nullable;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.lang.reflect.Field;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
@@ -31,59 +40,38 @@ import java.util.Set;
 // Make sure the field names are still correct on new Minecraft versions
 public class ReflectionUtils {
 
-    private static final Field STATES_FIELD;
-    private static final Field SECTION_POS_FIELD;
-    private static final Field POSITIONS_FIELD;
-    private static final Field BUFFER_FIELD;
-    private static final Field ITEMSTACK_FIELD;
-    private static final Field EQUIPMENT_SLOTS_FIELD;
+    // Hot packet fields, static final handles can be inlined by the JIT unlike Field#get/set
+    private static final VarHandle STATES;
+    private static final MethodHandle STATES_SETTER;
+    private static final VarHandle SECTION_POS;
+    private static final VarHandle POSITIONS;
+    private static final VarHandle BUFFER;
+    private static final MethodHandle BUFFER_SETTER;
+    private static final MethodHandle ITEMSTACK_SETTER;
+    private static final MethodHandle EQUIPMENT_SLOTS_SETTER;
+    private static final VarHandle ENTITY_ID;
+    private static final MethodHandle Y_ROT_SETTER;
+    private static final VarHandle SINGLE_VALUE_PALETTE_VALUE;
+
     private static final Field BLOCK_MATERIAL_FIELD;
     private static final Field ITEM_MATERIAL_FIELD;
     private static final Field MATERIAL_ITEM_FIELD;
     private static final Field MATERIAL_BLOCK_FIELD;
     private static final Field RECIPE_PROPERTY_SET_ITEMS;
     private static final Field UPDATE_INTERVAL_FIELD;
-    private static final Field ENTITY_ID_FIELD;
-    private static final Field Y_ROT_FIELD;
-    private static final Field SINGLE_VALUE_PALETTE_VALUE_FIELD;
 
     static {
-        try {
-            STATES_FIELD = ClientboundSectionBlocksUpdatePacket.class.getDeclaredField("states");
-            STATES_FIELD.setAccessible(true);
-        } catch (Exception e) {
-            throw new RuntimeException("Failed to initialize STATES_FIELD", e);
-        }
-        try {
-            SECTION_POS_FIELD = ClientboundSectionBlocksUpdatePacket.class.getDeclaredField("sectionPos");
-            SECTION_POS_FIELD.setAccessible(true);
-        } catch (Exception e) {
-            throw new RuntimeException("Failed to initialize SECTION_POS_FIELD", e);
-        }
-        try {
-            POSITIONS_FIELD = ClientboundSectionBlocksUpdatePacket.class.getDeclaredField("positions");
-            POSITIONS_FIELD.setAccessible(true);
-        } catch (Exception e) {
-            throw new RuntimeException("Failed to initialize POSITIONS_FIELD", e);
-        }
-        try {
-            BUFFER_FIELD = ClientboundLevelChunkPacketData.class.getDeclaredField("buffer");
-            BUFFER_FIELD.setAccessible(true);
-        } catch (Exception e) {
-            throw new RuntimeException("Failed to initialize BUFFER_FIELD", e);
-        }
-        try {
-            ITEMSTACK_FIELD = ClientboundContainerSetSlotPacket.class.getDeclaredField("itemStack");
-            ITEMSTACK_FIELD.setAccessible(true);
-        } catch (Exception e) {
-            throw new RuntimeException("Failed to initialize ITEMSTACK_FIELD", e);
-        }
-        try {
-            EQUIPMENT_SLOTS_FIELD = ClientboundSetEquipmentPacket.class.getDeclaredField("slots");
-            EQUIPMENT_SLOTS_FIELD.setAccessible(true);
-        } catch (Exception e) {
-            throw new RuntimeException("Failed to initialize EQUIPMENT_SLOTS_FIELD", e);
-        }
+        STATES = findVarHandle(ClientboundSectionBlocksUpdatePacket.class, "states", BlockState[].class);
+        STATES_SETTER = findFinalSetter(ClientboundSectionBlocksUpdatePacket.class, "states");
+        SECTION_POS = findVarHandle(ClientboundSectionBlocksUpdatePacket.class, "sectionPos", SectionPos.class);
+        POSITIONS = findVarHandle(ClientboundSectionBlocksUpdatePacket.class, "positions", short[].class);
+        BUFFER = findVarHandle(ClientboundLevelChunkPacketData.class, "buffer", byte[].class);
+        BUFFER_SETTER = findFinalSetter(ClientboundLevelChunkPacketData.class, "buffer");
+        ITEMSTACK_SETTER = findFinalSetter(ClientboundContainerSetSlotPacket.class, "itemStack");
+        EQUIPMENT_SLOTS_SETTER = findFinalSetter(ClientboundSetEquipmentPacket.class, "slots");
+        ENTITY_ID = findVarHandle(ClientboundMoveEntityPacket.class, "entityId", int.class);
+        Y_ROT_SETTER = findFinalSetter(ClientboundMoveEntityPacket.class, "yRot");
+        SINGLE_VALUE_PALETTE_VALUE = findVarHandle(SingleValuePalette.class, "value", Object.class);
         try {
             BLOCK_MATERIAL_FIELD = CraftMagicNumbers.class.getDeclaredField("BLOCK_MATERIAL");
             BLOCK_MATERIAL_FIELD.setAccessible(true);
@@ -108,52 +96,54 @@ public class ReflectionUtils {
         } catch (Exception e) {
             throw new RuntimeException("Failed to initialize UPDATE_INTERVAL_FIELD", e);
         }
-        try {
-            ENTITY_ID_FIELD = ClientboundMoveEntityPacket.class.getDeclaredField("entityId");
-            ENTITY_ID_FIELD.setAccessible(true);
-        } catch (Exception e) {
-            throw new RuntimeException("Failed to initialize ENTITY_ID_FIELD", e);
-        }
-        try {
-            Y_ROT_FIELD = ClientboundMoveEntityPacket.class.getDeclaredField("yRot");
-            Y_ROT_FIELD.setAccessible(true);
-        } catch (Exception e) {
-            throw new RuntimeException("Failed to initialize Y_ROT_FIELD", e);
-        }
-        try {
-            SINGLE_VALUE_PALETTE_VALUE_FIELD = SingleValuePalette.class.getDeclaredField("value");
-            SINGLE_VALUE_PALETTE_VALUE_FIELD.setAccessible(true);
-        } catch (Exception e) {
-            throw new RuntimeException("Failed to initialize SINGLE_VALUE_PALETTE_VALUE_FIELD", e);
-        }
     }
 
     public static BlockState[] getBlockStates(ClientboundSectionBlocksUpdatePacket packet) throws Exception {
-        return (BlockState[]) STATES_FIELD.get(packet);
+        return (BlockState[]) STATES.get(packet);
     }
 
     public static void setBlockStates(ClientboundSectionBlocksUpdatePacket packet, BlockState[] states) throws Exception {
-        STATES_FIELD.set(packet, states);
+        try {
+            STATES_SETTER.invokeExact(packet, states);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
     }
 
     public static SectionPos getSectionPos(ClientboundSectionBlocksUpdatePacket packet) throws Exception {
-        return (SectionPos) SECTION_POS_FIELD.get(packet);
+        return (SectionPos) SECTION_POS.get(packet);
     }
 
     public static short[] getPositions(ClientboundSectionBlocksUpdatePacket packet) throws Exception {
-        return (short[]) POSITIONS_FIELD.get(packet);
+        return (short[]) POSITIONS.get(packet);
+    }
+
+    public static byte[] getBuffer(ClientboundLevelChunkPacketData packet) throws Exception {
+        return (byte[]) BUFFER.get(packet);
     }
 
     public static void setBuffer(ClientboundLevelChunkPacketData packet, byte[] buffer) throws Exception {
-        BUFFER_FIELD.set(packet, buffer);
+        try {
+            BUFFER_SETTER.invokeExact(packet, buffer);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
     }
 
     public static void setItemStack(ClientboundContainerSetSlotPacket packet, ItemStack item) throws Exception {
-        ITEMSTACK_FIELD.set(packet, item);
+        try {
+            ITEMSTACK_SETTER.invokeExact(packet, item);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
     }
 
     public static void setEquipmentSlots(ClientboundSetEquipmentPacket packet, List<Pair<EquipmentSlot, ItemStack>> slots) throws Exception {
-        EQUIPMENT_SLOTS_FIELD.set(packet, slots);
+        try {
+            EQUIPMENT_SLOTS_SETTER.invokeExact(packet, slots);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
     }
 
     public static void setBlockMaterial(Block block, Material material) throws Exception {
@@ -183,23 +173,92 @@ public class ReflectionUtils {
         return (Set<Holder<Item>>) RECIPE_PROPERTY_SET_ITEMS.get(recipePropertySet);
     }
 
-    public static void setItems(RecipePropertySet recipePropertySet, Set<Holder<Item>> items) throws Exception {
-        RECIPE_PROPERTY_SET_ITEMS.set(recipePropertySet, items);
-    }
-
     public static void setUpdateInterval(ServerEntity entity, int updateInterval) throws Exception {
         UPDATE_INTERVAL_FIELD.set(entity, updateInterval);
     }
 
     public static int getEntityId(ClientboundMoveEntityPacket packet) throws Exception {
-        return ENTITY_ID_FIELD.getInt(packet);
+        return (int) ENTITY_ID.get(packet);
     }
 
     public static void setYRot(ClientboundMoveEntityPacket packet, byte yRot) throws Exception {
-        Y_ROT_FIELD.setByte(packet, yRot);
+        try {
+            Y_ROT_SETTER.invokeExact(packet, yRot);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
     }
 
     public static <T> void setValue(SingleValuePalette<T> palette, T value) throws Exception {
-        SINGLE_VALUE_PALETTE_VALUE_FIELD.set(palette, value);
+        SINGLE_VALUE_PALETTE_VALUE.set(palette, (Object) value);
+    }
+
+    private static @NotNull VarHandle findVarHandle(@NotNull Class<?> clazz, @NotNull String name, @NotNull Class<?> type) {
+        try {
+            return MethodHandles.privateLookupIn(clazz, MethodHandles.lookup()).findVarHandle(clazz, name, type);
+        } catch (Exception e) {
+            throw fieldNotFound(clazz, name, e);
+        }
+    }
+
+    /**
+     * VarHandles can't write final fields, a setter unreflected from an accessible {@link Field} can
+     *
+     * @return a setter of type {@code (clazz, fieldType)void}
+     */
+    private static @NotNull MethodHandle findFinalSetter(@NotNull Class<?> clazz, @NotNull String name) {
+        try {
+            Field field = clazz.getDeclaredField(name);
+            field.setAccessible(true);
+            return MethodHandles.lookup().unreflectSetter(field);
+        } catch (Exception e) {
+            throw fieldNotFound(clazz, name, e);
+        }
+    }
+
+    private static @NotNull IllegalStateException fieldNotFound(@NotNull Class<?> clazz, @NotNull String name, @NotNull Exception cause) {
+        return new IllegalStateException("Could not find the field " + clazz.getSimpleName() + "#" + name + ", it was probably renamed in this Minecraft version", cause);
+    }
+
+    private static @NotNull Exception propagate(@NotNull Throwable t) {
+        if (t instanceof Error error) throw error;
+        return t instanceof Exception exception ? exception : new RuntimeException(t);
+    }
+
+    /**
+     * Checks that every packet handle still reads and writes the right field, so a Minecraft update changing them
+     * fails when the plugin is enabled instead of when the first packet is rewritten
+     */
+    public static void selfTest() {
+        try {
+            ClientboundMoveEntityPacket.Rot rot = new ClientboundMoveEntityPacket.Rot(42, (byte) 1, (byte) 2, true);
+            setYRot(rot, (byte) 3);
+            check(getEntityId(rot) == 42 && rot.getYRot() == 3, "ClientboundMoveEntityPacket");
+
+            ClientboundContainerSetSlotPacket setSlot = new ClientboundContainerSetSlotPacket(0, 0, 0, ItemStack.EMPTY);
+            ItemStack item = new ItemStack(Items.STONE);
+            setItemStack(setSlot, item);
+            check(setSlot.getItem() == item, "ClientboundContainerSetSlotPacket");
+
+            ClientboundSetEquipmentPacket setEquipment = new ClientboundSetEquipmentPacket(0, List.of());
+            List<Pair<EquipmentSlot, ItemStack>> slots = List.of(Pair.of(EquipmentSlot.HEAD, item));
+            setEquipmentSlots(setEquipment, slots);
+            check(setEquipment.getSlots() == slots, "ClientboundSetEquipmentPacket");
+
+            //noinspection DataFlowIssue -- It should work fine
+            LevelChunkSection section = new LevelChunkSection(PalettedContainerFactory.create(MinecraftServer.getServer().registryAccess()), null, null, 0);
+            ClientboundSectionBlocksUpdatePacket sectionBlocksUpdate = new ClientboundSectionBlocksUpdatePacket(SectionPos.of(1, 2, 3), ShortSet.of((short) 0), section);
+            BlockState[] states = {Blocks.STONE.defaultBlockState()};
+            setBlockStates(sectionBlocksUpdate, states);
+            check(getBlockStates(sectionBlocksUpdate) == states
+                    && getSectionPos(sectionBlocksUpdate).equals(SectionPos.of(1, 2, 3))
+                    && getPositions(sectionBlocksUpdate).length == 1, "ClientboundSectionBlocksUpdatePacket");
+        } catch (Exception e) {
+            throw new IllegalStateException("LostEngine's packet reflection doesn't work with this Minecraft version", e);
+        }
+    }
+
+    private static void check(boolean condition, @NotNull String packet) {
+        if (!condition) throw new IllegalStateException("Reflection on " + packet + " doesn't access the expected fields");
     }
 }